@@ -0,0 +1,192 @@
+package ar.com.leo;
+
+import java.net.http.HttpResponse;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate limiter de un host que ajusta su tasa en tiempo de ejecución (AIMD).
+ * Baja la tasa ante 429, Retry-After o x-rate-limit-remaining bajo, y la sube de a poco
+ * mientras las respuestas sean sanas, sin pasar de {@code FACTOR_MAXIMO} veces la tasa inicial.
+ * <p>
+ * Los permisos se reservan: cada pedido toma el siguiente turno libre y sabe al instante cuánto tiene que
+ * esperar, así el modo bloqueante (que duerme esa espera) y el asíncrono (que programa el envío para
+ * entonces) comparten una única fila en orden de llegada. Como {@code RateLimiter.create} de Guava,
+ * acumula hasta un segundo de permisos sin usar para absorber ráfagas.
+ */
+public class AdaptiveRateLimiter {
+
+    private static final double FACTOR_MINIMO = 0.1;
+    private static final double FACTOR_MAXIMO = 2.0;
+    private static final double FACTOR_BAJA_429 = 0.5;
+    private static final double FACTOR_BAJA_REMAINING = 0.8;
+    private static final double FRACCION_REMAINING_BAJO = 0.2;
+    private static final double FRACCION_SUBIDA = 0.1;
+    private static final int RESPUESTAS_SANAS_PARA_SUBIR = 20;
+    // Evita que varias respuestas en vuelo de la misma ráfaga bajen la tasa en cascada
+    private static final long COOLDOWN_BAJA_MS = 1000;
+
+    private final String host;
+    private final double tasaMinima;
+    private final double tasaMaxima;
+    private final double pasoSubida;
+    private double tasa;
+    // Próximo turno libre (System.nanoTime) y permisos acumulados sin usar, hasta un segundo de tasa
+    private long proximoLibreNanos = System.nanoTime();
+    private double permisosGuardados;
+    private int respuestasSanas;
+    private long ultimaBaja;
+    private volatile long pausadoHasta;
+
+    public AdaptiveRateLimiter(String host, double permitsPerSecond) {
+        this.host = host;
+        this.tasa = permitsPerSecond;
+        this.tasaMinima = permitsPerSecond * FACTOR_MINIMO;
+        this.tasaMaxima = permitsPerSecond * FACTOR_MAXIMO;
+        this.pasoSubida = permitsPerSecond * FRACCION_SUBIDA;
+    }
+
+    /**
+     * Bloquea hasta obtener un permiso, respetando una pausa pedida por el servidor.
+     *
+     * @param maxEsperaMs espera máxima aceptable (por ejemplo el tiempo restante de la corrida)
+     * @return milisegundos esperados, o -1 si el permiso no se puede obtener dentro de maxEsperaMs
+     */
+    public long acquire(long maxEsperaMs) throws InterruptedException {
+        long esperaMs = reservar(maxEsperaMs);
+        if (esperaMs > 0) {
+            Thread.sleep(esperaMs);
+        }
+        return esperaMs;
+    }
+
+    /**
+     * Reserva el siguiente permiso libre sin bloquear.
+     *
+     * @param maxEsperaMs espera máxima aceptable
+     * @return milisegundos hasta que el permiso reservado se puede usar, o -1 (sin reservar nada) si la
+     * espera pasa de maxEsperaMs
+     */
+    public synchronized long reservar(long maxEsperaMs) {
+        long ahora = System.nanoTime();
+        acumular(ahora);
+        long pausaNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, pausadoHasta - System.currentTimeMillis()));
+        long disponible = Math.max(proximoLibreNanos, ahora + pausaNanos);
+        long esperaMs = TimeUnit.NANOSECONDS.toMillis(disponible - ahora + 999_999);
+        if (esperaMs > maxEsperaMs) {
+            return -1;
+        }
+        double usados = disponible == ahora ? Math.min(1, permisosGuardados) : 0;
+        permisosGuardados -= usados;
+        proximoLibreNanos = disponible + (long) ((1 - usados) * intervaloNanos());
+        return esperaMs;
+    }
+
+    /**
+     * Intenta obtener un permiso sin esperar.
+     */
+    public boolean tryAcquire() {
+        return reservar(0) == 0;
+    }
+
+    /**
+     * Suma los permisos que no se usaron desde el último turno, hasta un segundo de tasa.
+     */
+    private void acumular(long ahora) {
+        if (ahora > proximoLibreNanos) {
+            permisosGuardados = Math.min(tasa, permisosGuardados + (ahora - proximoLibreNanos) / intervaloNanos());
+            proximoLibreNanos = ahora;
+        }
+    }
+
+    private double intervaloNanos() {
+        return TimeUnit.SECONDS.toNanos(1) / tasa;
+    }
+
+    private synchronized void cambiarTasa(double nueva) {
+        acumular(System.nanoTime());
+        permisosGuardados = permisosGuardados * nueva / tasa;
+        tasa = nueva;
+    }
+
+    public synchronized double getRate() {
+        return tasa;
+    }
+
+    /**
+     * Ajusta la tasa según el status y los headers de rate limit de una respuesta.
+     */
+    public synchronized void registrarRespuesta(HttpResponse<?> response) {
+        int status = response.statusCode();
+        long retryAfterMs = HttpRetryHandler.parseRetryAfter(response, 0);
+        if (retryAfterMs > 0) {
+            pausar(retryAfterMs);
+        }
+
+        if (status == 429) {
+            bajar(FACTOR_BAJA_429, "429 Too Many Requests");
+            return;
+        }
+
+        OptionalLong remaining = headerLong(response, "x-rate-limit-remaining");
+        OptionalLong limit = headerLong(response, "x-rate-limit-limit");
+        if (remaining.isPresent()) {
+            if (remaining.getAsLong() <= 0) {
+                // Tienda Nube informa en x-rate-limit-reset los ms hasta vaciar el bucket
+                headerLong(response, "x-rate-limit-reset").ifPresent(this::pausar);
+            }
+            boolean bajo = limit.isPresent()
+                    ? remaining.getAsLong() <= limit.getAsLong() * FRACCION_REMAINING_BAJO
+                    : remaining.getAsLong() <= 1;
+            if (bajo) {
+                bajar(FACTOR_BAJA_REMAINING, "x-rate-limit-remaining=" + remaining.getAsLong());
+                return;
+            }
+        }
+
+        if (status >= 200 && status < 300 && retryAfterMs <= 0) {
+            respuestasSanas++;
+            if (respuestasSanas >= RESPUESTAS_SANAS_PARA_SUBIR) {
+                respuestasSanas = 0;
+                double nueva = Math.min(tasaMaxima, tasa + pasoSubida);
+                if (nueva > tasa) {
+                    cambiarTasa(nueva);
+                }
+            }
+        }
+    }
+
+    private void bajar(double factor, String motivo) {
+        respuestasSanas = 0;
+        long ahora = System.currentTimeMillis();
+        if (ahora - ultimaBaja < COOLDOWN_BAJA_MS) return;
+        ultimaBaja = ahora;
+
+        double actual = tasa;
+        double nueva = Math.max(tasaMinima, actual * factor);
+        if (nueva < actual) {
+            cambiarTasa(nueva);
+            AppLogger.warn(String.format("RATE LIMIT (%s) - %s → tasa reducida de %.3f a %.3f req/s",
+                    host, motivo, actual, nueva));
+        }
+    }
+
+    private void pausar(long ms) {
+        long hasta = System.currentTimeMillis() + Math.min(ms, HttpRetryHandler.MAX_WAIT_MS);
+        if (hasta > pausadoHasta) {
+            pausadoHasta = hasta;
+        }
+    }
+
+    private static OptionalLong headerLong(HttpResponse<?> response, String name) {
+        return response.headers().firstValue(name)
+                .map(value -> {
+                    try {
+                        return OptionalLong.of(Long.parseLong(value.trim()));
+                    } catch (NumberFormatException e) {
+                        return OptionalLong.empty();
+                    }
+                })
+                .orElse(OptionalLong.empty());
+    }
+}
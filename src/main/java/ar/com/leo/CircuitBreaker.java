@@ -0,0 +1,147 @@
+package ar.com.leo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Circuit breaker por host, compartido por todos los HttpRetryHandler.
+ * CERRADO: los requests pasan normalmente.
+ * ABIERTO: tras {@code FALLAS_PARA_ABRIR} fallas seguidas (5xx o error de conexión) los requests
+ * fallan al instante durante {@code TIEMPO_ABIERTO_MS}, sin reintentos ni backoff.
+ * SEMI_ABIERTO: pasado ese tiempo se deja pasar un único request de prueba; si responde se cierra,
+ * si falla vuelve a abrirse.
+ */
+public class CircuitBreaker {
+
+    public enum Estado {CERRADO, ABIERTO, SEMI_ABIERTO}
+
+    private static final int FALLAS_PARA_ABRIR = 5;
+    private static final long TIEMPO_ABIERTO_MS = 30000;
+    private static final ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    private final String host;
+    private Estado estado = Estado.CERRADO;
+    private int fallasConsecutivas;
+    private long abiertoDesde;
+    private boolean pruebaEnCurso;
+    // Para el reporte de la corrida
+    private int aperturas;
+    private int rechazados;
+
+    private CircuitBreaker(String host) {
+        this.host = host;
+    }
+
+    public static CircuitBreaker de(String host) {
+        return breakers.computeIfAbsent(host, CircuitBreaker::new);
+    }
+
+    /**
+     * Reinicia los contadores del reporte (no el estado de los circuitos).
+     */
+    public static void reiniciarReporte() {
+        for (CircuitBreaker breaker : breakers.values()) {
+            synchronized (breaker) {
+                breaker.aperturas = 0;
+                breaker.rechazados = 0;
+            }
+        }
+    }
+
+    /**
+     * Una línea por host cuyo circuito se abrió o rechazó requests desde el último reinicio del reporte.
+     */
+    public static List<String> reporte() {
+        List<String> lineas = new ArrayList<>();
+        for (CircuitBreaker breaker : breakers.values()) {
+            synchronized (breaker) {
+                if (breaker.aperturas > 0 || breaker.rechazados > 0) {
+                    lineas.add(breaker.host + ": estado " + breaker.estado + ", aperturas " + breaker.aperturas
+                            + ", requests rechazados " + breaker.rechazados);
+                }
+            }
+        }
+        return lineas;
+    }
+
+    /**
+     * Indica si se puede enviar un request al host. Si devuelve false, el request debe fallar sin enviarse.
+     */
+    public synchronized boolean permitir() {
+        switch (estado) {
+            case CERRADO -> {
+                return true;
+            }
+            case ABIERTO -> {
+                if (System.currentTimeMillis() - abiertoDesde >= TIEMPO_ABIERTO_MS) {
+                    estado = Estado.SEMI_ABIERTO;
+                    pruebaEnCurso = true;
+                    AppLogger.info("CIRCUIT (" + host + ") - Semi-abierto, enviando request de prueba...");
+                    return true;
+                }
+                rechazados++;
+                return false;
+            }
+            default -> {
+                if (pruebaEnCurso) {
+                    rechazados++;
+                    return false;
+                }
+                pruebaEnCurso = true;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Indica, sin cambiar el estado, si un request sería rechazado ahora: circuito abierto y todavía dentro
+     * de {@code TIEMPO_ABIERTO_MS}, o semi-abierto con la prueba en curso. Permite descartar el request antes
+     * de esperar un permiso del rate limiter; el request que pasa igual debe pedir {@link #permitir()}.
+     * Cuenta el rechazo para el reporte.
+     */
+    public synchronized boolean rechazaAhora() {
+        boolean rechaza = switch (estado) {
+            case CERRADO -> false;
+            case ABIERTO -> System.currentTimeMillis() - abiertoDesde < TIEMPO_ABIERTO_MS;
+            case SEMI_ABIERTO -> pruebaEnCurso;
+        };
+        if (rechaza) rechazados++;
+        return rechaza;
+    }
+
+    public synchronized void registrarExito() {
+        if (estado != Estado.CERRADO) {
+            AppLogger.info("CIRCUIT (" + host + ") - Host respondiendo nuevamente, circuito cerrado.");
+        }
+        estado = Estado.CERRADO;
+        fallasConsecutivas = 0;
+        pruebaEnCurso = false;
+    }
+
+    public synchronized void registrarFalla() {
+        fallasConsecutivas++;
+        pruebaEnCurso = false;
+        if (estado == Estado.SEMI_ABIERTO || (estado == Estado.CERRADO && fallasConsecutivas >= FALLAS_PARA_ABRIR)) {
+            estado = Estado.ABIERTO;
+            abiertoDesde = System.currentTimeMillis();
+            aperturas++;
+            AppLogger.warn("CIRCUIT (" + host + ") - " + fallasConsecutivas + " fallas seguidas, circuito abierto por "
+                    + (TIEMPO_ABIERTO_MS / 1000) + " segundos. Los requests a este host fallan sin reintentos.");
+        }
+    }
+
+    /**
+     * Libera el request de prueba de SEMI_ABIERTO cuando terminó sin resultado (interrumpido, cancelado o
+     * con una excepción que no es del host), para que el siguiente request pueda probar.
+     */
+    public synchronized void cancelarPrueba() {
+        if (estado == Estado.SEMI_ABIERTO) {
+            pruebaEnCurso = false;
+        }
+    }
+
+    public synchronized Estado getEstado() {
+        return estado;
+    }
+}
@@ -0,0 +1,249 @@
+package ar.com.leo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * BodyHandler que descomprime respuestas con Content-Encoding gzip o deflate antes de
+ * pasarlas al BodyHandler real. Las respuestas sin comprimir pasan directo.
+ */
+public class DecompressingBodyHandler<T> implements HttpResponse.BodyHandler<T> {
+
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final HttpResponse.BodyHandler<T> delegate;
+
+    public DecompressingBodyHandler(HttpResponse.BodyHandler<T> delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public HttpResponse.BodySubscriber<T> apply(HttpResponse.ResponseInfo responseInfo) {
+        String encoding = responseInfo.headers().firstValue("Content-Encoding")
+                .map(value -> value.trim().toLowerCase(Locale.ROOT))
+                .orElse("");
+        HttpResponse.BodySubscriber<T> downstream = delegate.apply(responseInfo);
+        if (!encoding.equals("gzip") && !encoding.equals("x-gzip") && !encoding.equals("deflate")) {
+            return downstream;
+        }
+        return new DecompressingSubscriber<>(encoding, downstream);
+    }
+
+    /**
+     * Descomprime el cuerpo a medida que llega y se lo entrega al subscriber real respetando su demanda:
+     * cada bloque pedido río arriba produce un bloque descomprimido, o se pide otro si todavía no alcanzó
+     * para sacar datos (por ejemplo mientras se lee la cabecera gzip). Así ofInputStream() devuelve la
+     * respuesta apenas llegan los headers y el cuerpo nunca está entero en memoria.
+     */
+    private static final class DecompressingSubscriber<T> implements HttpResponse.BodySubscriber<T> {
+
+        private enum Etapa {CABECERA, DATOS, COLA, FIN}
+
+        private final boolean gzip;
+        private final HttpResponse.BodySubscriber<T> downstream;
+        // Bytes de la cabecera gzip (o de los dos primeros de deflate) mientras no está completa
+        private final ByteArrayOutputStream cabecera = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream cola = new ByteArrayOutputStream();
+        private final CRC32 crc = new CRC32();
+        private Inflater inflater;
+        private Etapa etapa = Etapa.CABECERA;
+        private long descomprimidos;
+        private boolean terminado;
+        private Flow.Subscription upstream;
+
+        DecompressingSubscriber(String encoding, HttpResponse.BodySubscriber<T> downstream) {
+            this.gzip = !encoding.equals("deflate");
+            this.downstream = downstream;
+        }
+
+        @Override
+        public CompletionStage<T> getBody() {
+            return downstream.getBody();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.upstream = subscription;
+            downstream.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    subscription.request(n);
+                }
+
+                @Override
+                public void cancel() {
+                    subscription.cancel();
+                }
+            });
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            if (terminado) return;
+            List<ByteBuffer> salida = new ArrayList<>();
+            try {
+                for (ByteBuffer item : items) {
+                    procesar(item, salida);
+                }
+            } catch (IOException e) {
+                upstream.cancel();
+                onError(e);
+                return;
+            }
+            if (salida.isEmpty()) {
+                // No salió nada para el pedido del subscriber real: se lo pide a la red
+                upstream.request(1);
+            } else {
+                downstream.onNext(salida);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            if (terminado) return;
+            terminado = true;
+            liberar();
+            downstream.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            if (terminado) return;
+            terminado = true;
+            liberar();
+            // Un cuerpo vacío (HEAD, 204) puede venir con Content-Encoding igual
+            boolean vacio = etapa == Etapa.CABECERA && cabecera.size() == 0;
+            if (etapa == Etapa.FIN || vacio) {
+                downstream.onComplete();
+            } else {
+                downstream.onError(new EOFException("Cuerpo " + (gzip ? "gzip" : "deflate") + " truncado"));
+            }
+        }
+
+        private void procesar(ByteBuffer item, List<ByteBuffer> salida) throws IOException {
+            if (etapa == Etapa.CABECERA) {
+                escribir(cabecera, item);
+                byte[] bytes = cabecera.toByteArray();
+                int largo = gzip ? largoCabeceraGzip(bytes) : inicioDeflate(bytes);
+                if (largo < 0) return;
+                etapa = Etapa.DATOS;
+                item = ByteBuffer.wrap(bytes, largo, bytes.length - largo);
+            }
+            if (etapa == Etapa.DATOS) {
+                inflar(item, salida);
+            }
+            if (etapa == Etapa.COLA) {
+                escribir(cola, item);
+                if (cola.size() >= 8) {
+                    verificarCola(cola.toByteArray());
+                    etapa = Etapa.FIN;
+                }
+            }
+            // En FIN se ignora lo que sobre (relleno o miembros gzip adicionales)
+        }
+
+        private void inflar(ByteBuffer entrada, List<ByteBuffer> salida) throws IOException {
+            inflater.setInput(entrada);
+            try {
+                while (true) {
+                    byte[] chunk = new byte[CHUNK_SIZE];
+                    int n = inflater.inflate(chunk);
+                    if (n > 0) {
+                        if (gzip) crc.update(chunk, 0, n);
+                        descomprimidos += n;
+                        salida.add(ByteBuffer.wrap(chunk, 0, n));
+                    }
+                    if (inflater.finished()) {
+                        etapa = gzip ? Etapa.COLA : Etapa.FIN;
+                        liberar();
+                        return;
+                    }
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        if (inflater.needsDictionary()) throw new ZipException("deflate con diccionario no soportado");
+                        return;
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException("Cuerpo comprimido inválido: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Largo de la cabecera gzip (RFC 1952), o -1 si todavía no llegó completa.
+         */
+        private int largoCabeceraGzip(byte[] b) throws IOException {
+            if (b.length < 10) return -1;
+            if ((b[0] & 0xFF) != 0x1F || (b[1] & 0xFF) != 0x8B || b[2] != 8) {
+                throw new ZipException("Content-Encoding gzip pero el cuerpo no es gzip");
+            }
+            int flags = b[3] & 0xFF;
+            int pos = 10;
+            if ((flags & 4) != 0) { // FEXTRA
+                if (b.length < pos + 2) return -1;
+                pos += 2 + ((b[pos] & 0xFF) | ((b[pos + 1] & 0xFF) << 8));
+            }
+            if ((flags & 8) != 0) pos = finDeTexto(b, pos);   // FNAME
+            if (pos >= 0 && (flags & 16) != 0) pos = finDeTexto(b, pos); // FCOMMENT
+            if (pos >= 0 && (flags & 2) != 0) pos += 2; // FHCRC
+            if (pos < 0 || pos > b.length) return -1;
+            inflater = new Inflater(true);
+            return pos;
+        }
+
+        private static int finDeTexto(byte[] b, int desde) {
+            for (int i = desde; i < b.length; i++) {
+                if (b[i] == 0) return i + 1;
+            }
+            return -1;
+        }
+
+        /**
+         * "deflate" debería venir con wrapper zlib, pero algunos servidores mandan deflate crudo:
+         * se decide con los dos primeros bytes.
+         */
+        private int inicioDeflate(byte[] b) {
+            if (b.length < 2) return -1;
+            boolean zlib = (b[0] & 0x0F) == 8 && (((b[0] & 0xFF) << 8) | (b[1] & 0xFF)) % 31 == 0;
+            inflater = new Inflater(!zlib);
+            return 0;
+        }
+
+        private void verificarCola(byte[] b) throws IOException {
+            long crcEsperado = leerEntero(b, 0);
+            long largoEsperado = leerEntero(b, 4);
+            if (crcEsperado != crc.getValue() || largoEsperado != (descomprimidos & 0xFFFFFFFFL)) {
+                throw new ZipException("gzip corrupto: CRC o largo no coinciden");
+            }
+        }
+
+        private static long leerEntero(byte[] b, int pos) {
+            return (b[pos] & 0xFFL) | ((b[pos + 1] & 0xFFL) << 8) | ((b[pos + 2] & 0xFFL) << 16) | ((b[pos + 3] & 0xFFL) << 24);
+        }
+
+        private static void escribir(ByteArrayOutputStream destino, ByteBuffer item) {
+            byte[] bytes = new byte[item.remaining()];
+            item.get(bytes);
+            destino.write(bytes, 0, bytes.length);
+        }
+
+        private void liberar() {
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
+            }
+        }
+    }
+}
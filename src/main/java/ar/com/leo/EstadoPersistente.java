@@ -0,0 +1,53 @@
+package ar.com.leo;
+
+import tools.jackson.core.type.TypeReference;
+import tools.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Lectura y escritura de los archivos de estado (ledger, cachés, diarios, tokens, etiquetas).
+ * Se escribe a un temporal en el mismo directorio y se mueve con ATOMIC_MOVE: un corte a mitad de
+ * escritura deja el archivo anterior entero, nunca uno a medio escribir.
+ * Los errores se propagan; cada llamador decide qué loguear y si descarta el estado.
+ */
+public class EstadoPersistente {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * Guarda el valor como JSON.
+     */
+    public static void guardarAtomico(Path archivo, Object valor) throws IOException {
+        escribirAtomico(archivo, mapper.writeValueAsBytes(valor));
+    }
+
+    public static void escribirAtomico(Path archivo, byte[] contenido) throws IOException {
+        Path dir = archivo.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        String nombre = archivo.getFileName().toString();
+        int punto = nombre.lastIndexOf('.');
+        Path tmp = Files.createTempFile(dir, punto > 0 ? nombre.substring(0, punto) : nombre, ".tmp");
+        try {
+            Files.write(tmp, contenido);
+            Files.move(tmp, archivo, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    /**
+     * @return el valor guardado, o null si el archivo no existe
+     */
+    public static <T> T leer(Path archivo, Class<T> tipo) {
+        return Files.exists(archivo) ? mapper.readValue(archivo.toFile(), tipo) : null;
+    }
+
+    public static <T> T leer(Path archivo, TypeReference<T> tipo) {
+        return Files.exists(archivo) ? mapper.readValue(archivo.toFile(), tipo) : null;
+    }
+}
@@ -0,0 +1,194 @@
+package ar.com.leo;
+
+import javax.net.ssl.SSLSession;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Caché en disco de respuestas GET, usada por {@link HttpRetryHandler#sendWithCache}.
+ * Una entrada por URL (un archivo JSON por entrada, con el SHA-256 de la URL como nombre), con el
+ * ETag / Last-Modified que haya mandado el servidor para revalidar con If-None-Match / If-Modified-Since.
+ * Las entradas leídas quedan también en memoria para no volver a leer el disco.
+ * La primera vez que se usa en la corrida poda el directorio: borra las entradas sin uso hace más de
+ * {@code EDAD_MAXIMA} y, si todavía ocupan más de {@code TAMANO_MAXIMO}, las menos usadas recientemente.
+ */
+public class HttpCache {
+
+    private static final Path CACHE_DIR = HttpRetryHandler.BASE_ESTADO_DIR.resolve("http_cache");
+    // Ubicación anterior, junto a secrets; se vacía al podar
+    private static final Path CACHE_DIR_ANTERIOR = HttpRetryHandler.BASE_SECRET_DIR.resolveSibling("cache");
+    private static final Duration EDAD_MAXIMA = Duration.ofDays(30);
+    private static final long TAMANO_MAXIMO = 100L * 1024 * 1024;
+    private static final ConcurrentHashMap<String, Entrada> memoria = new ConcurrentHashMap<>();
+    private static final AtomicBoolean podada = new AtomicBoolean();
+
+    public record Entrada(String url, String etag, String lastModified, long guardado, String body) {
+
+        boolean vigente(Duration ttl) {
+            return System.currentTimeMillis() - guardado < ttl.toMillis();
+        }
+
+        boolean revalidable() {
+            return etag != null || lastModified != null;
+        }
+
+        Entrada renovada() {
+            return new Entrada(url, etag, lastModified, System.currentTimeMillis(), body);
+        }
+    }
+
+    static Entrada leer(String url) {
+        podarUnaVez();
+        Entrada entrada = memoria.get(url);
+        if (entrada != null) return entrada;
+        try {
+            entrada = EstadoPersistente.leer(archivo(url), Entrada.class);
+            // Sin entrada, o colisión de hash / archivo de otra URL: ignorar
+            if (entrada == null || !url.equals(entrada.url())) return null;
+            memoria.put(url, entrada);
+            return entrada;
+        } catch (Exception e) {
+            AppLogger.warn("CACHE - Entrada ilegible para " + url + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    static void guardar(Entrada entrada) {
+        podarUnaVez();
+        memoria.put(entrada.url(), entrada);
+        try {
+            EstadoPersistente.guardarAtomico(archivo(entrada.url()), entrada);
+        } catch (Exception e) {
+            AppLogger.warn("CACHE - No se pudo guardar " + entrada.url() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Borra la entrada de una URL (por ejemplo si el recurso ya no existe).
+     */
+    public static void invalidar(String url) {
+        memoria.remove(url);
+        try {
+            Files.deleteIfExists(archivo(url));
+        } catch (Exception e) {
+            AppLogger.warn("CACHE - No se pudo borrar la entrada de " + url + ": " + e.getMessage());
+        }
+    }
+
+    private static void podarUnaVez() {
+        if (podada.compareAndSet(false, true)) {
+            podar(CACHE_DIR, EDAD_MAXIMA, TAMANO_MAXIMO);
+            podar(CACHE_DIR_ANTERIOR, Duration.ZERO, 0);
+            try {
+                Files.deleteIfExists(CACHE_DIR_ANTERIOR);
+            } catch (Exception ignored) {
+                // Quedó algo que no es de la caché: se deja
+            }
+        }
+    }
+
+    /**
+     * Borra las entradas (y temporales) de un directorio de caché que no se escribieron hace más de
+     * edadMaxima, y después las más viejas hasta que el resto ocupe a lo sumo tamanoMaximo bytes.
+     * Cada revalidación reescribe la entrada, así que la fecha del archivo es la del último uso.
+     */
+    static void podar(Path dir, Duration edadMaxima, long tamanoMaximo) {
+        if (!Files.isDirectory(dir)) return;
+        record Archivo(Path path, long modificado, long tamano) {
+        }
+        List<Archivo> archivos = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.{json,tmp}")) {
+            for (Path path : stream) {
+                BasicFileAttributes atributos = Files.readAttributes(path, BasicFileAttributes.class);
+                archivos.add(new Archivo(path, atributos.lastModifiedTime().toMillis(), atributos.size()));
+            }
+        } catch (Exception e) {
+            AppLogger.warn("CACHE - No se pudo recorrer " + dir + ": " + e.getMessage());
+            return;
+        }
+
+        // Más recientes primero: se conservan mientras entren en la edad y el tamaño
+        archivos.sort(Comparator.comparingLong(Archivo::modificado).reversed());
+        long limite = System.currentTimeMillis() - edadMaxima.toMillis();
+        long ocupado = 0;
+        int borrados = 0;
+        for (Archivo archivo : archivos) {
+            ocupado += archivo.tamano();
+            if (archivo.modificado() >= limite && ocupado <= tamanoMaximo) continue;
+            try {
+                Files.deleteIfExists(archivo.path());
+                borrados++;
+            } catch (Exception e) {
+                AppLogger.warn("CACHE - No se pudo borrar " + archivo.path() + ": " + e.getMessage());
+            }
+        }
+        if (borrados > 0) {
+            AppLogger.info("CACHE - Podadas " + borrados + " de " + archivos.size() + " entradas en " + dir);
+        }
+    }
+
+    private static Path archivo(String url) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+            return CACHE_DIR.resolve(HexFormat.of().formatHex(hash) + ".json");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Respuesta 200 armada a partir de una entrada de la caché, para que los llamadores
+     * no distingan si vino de la red o del disco.
+     */
+    record RespuestaCacheada(HttpRequest request, String body) implements HttpResponse<String> {
+
+        @Override
+        public int statusCode() {
+            return 200;
+        }
+
+        @Override
+        public Optional<HttpResponse<String>> previousResponse() {
+            return Optional.empty();
+        }
+
+        @Override
+        public HttpHeaders headers() {
+            return HttpHeaders.of(Map.of(), (name, value) -> true);
+        }
+
+        @Override
+        public Optional<SSLSession> sslSession() {
+            return Optional.empty();
+        }
+
+        @Override
+        public URI uri() {
+            return request.uri();
+        }
+
+        @Override
+        public HttpClient.Version version() {
+            return HttpClient.Version.HTTP_1_1;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package ar.com.leo;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Transporte HTTP compartido por todas las APIs (MercadoLibre, Tienda Nube, Dux).
+ * Un único HttpClient con HTTP/2 reutiliza conexiones y handshakes TLS entre clientes,
+ * y multiplexa los requests al mismo host sobre pocas conexiones.
+ */
+public class HttpClientFactory {
+
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+
+    // Virtual threads: los requests bloqueantes y los callbacks async no ocupan threads de plataforma
+    private static final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    // Sin followRedirects: los 3xx llegan al llamador, como con los clientes que reemplaza (Redirect.NEVER)
+    private static final HttpClient sharedClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(CONNECT_TIMEOUT)
+            .executor(executor)
+            .build();
+
+    public static HttpClient getSharedClient() {
+        return sharedClient;
+    }
+
+    public static ExecutorService getExecutor() {
+        return executor;
+    }
+}
@@ -0,0 +1,217 @@
+package ar.com.leo;
+
+import tools.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.net.http.HttpRequest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Métricas HTTP de la corrida, compartidas por todos los HttpRetryHandler.
+ * Por endpoint (host + método + path con los ids reemplazados por {id}): histograma de latencias y
+ * cantidad de respuestas por status. Por host: reintentos por causa, hedges, uso de la caché y tiempo
+ * total bloqueado esperando al rate limiter y en backoffs.
+ */
+public class HttpMetrics {
+
+    // Límites superiores (ms) de los buckets del histograma; el último bucket es "más de 30000"
+    private static final long[] BUCKETS_MS = {50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+    private static final ConcurrentHashMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<>();
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    public static void reiniciar() {
+        endpoints.clear();
+        hosts.clear();
+    }
+
+    /**
+     * Registra un envío terminado: {@code resultado} es el status HTTP o el nombre de la excepción.
+     */
+    public static void registrarEnvio(HttpRequest request, long latenciaMs, String resultado) {
+        endpoints.computeIfAbsent(endpoint(request), Endpoint::new).registrar(latenciaMs, resultado);
+    }
+
+    public static void registrarReintento(HttpRequest request, String causa, long esperaMs) {
+        Host host = host(request);
+        synchronized (host) {
+            host.reintentos.merge(causa, 1L, Long::sum);
+            host.backoffMs += Math.max(0, esperaMs);
+        }
+    }
+
+    public static void registrarEsperaRateLimiter(HttpRequest request, long esperaMs) {
+        if (esperaMs <= 0) return;
+        Host host = host(request);
+        synchronized (host) {
+            host.esperaRateLimiterMs += esperaMs;
+        }
+    }
+
+    public static void registrarHedge(HttpRequest request) {
+        Host host = host(request);
+        synchronized (host) {
+            host.hedges++;
+        }
+    }
+
+    /**
+     * @param resultado "hit" (servida sin red), "revalidado" (304) o "miss"
+     */
+    public static void registrarCache(HttpRequest request, String resultado) {
+        Host host = host(request);
+        synchronized (host) {
+            host.cache.merge(resultado, 1L, Long::sum);
+        }
+    }
+
+    /**
+     * Resumen legible, una línea por host y por endpoint.
+     */
+    public static List<String> resumen() {
+        List<String> lineas = new ArrayList<>();
+        for (Host host : new TreeMap<>(hosts).values()) {
+            synchronized (host) {
+                lineas.add(String.format("%s: rate limiter %d ms, backoff %d ms, reintentos %s, hedges %d, cache %s",
+                        host.nombre, host.esperaRateLimiterMs, host.backoffMs, host.reintentos, host.hedges, host.cache));
+            }
+        }
+        for (Endpoint endpoint : new TreeMap<>(endpoints).values()) {
+            synchronized (endpoint) {
+                lineas.add(String.format("%s: %d requests, prom %d ms, p50 %s, p95 %s, max %d ms, status %s",
+                        endpoint.nombre, endpoint.cantidad, endpoint.totalMs / Math.max(1, endpoint.cantidad),
+                        endpoint.percentil(0.5), endpoint.percentil(0.95), endpoint.maxMs, endpoint.status));
+            }
+        }
+        return lineas;
+    }
+
+    /**
+     * Escribe todas las métricas de la corrida en un archivo JSON.
+     */
+    public static void escribirJson(File archivo) {
+        Map<String, Object> raiz = new LinkedHashMap<>();
+        Map<String, Object> porHost = new LinkedHashMap<>();
+        for (Host host : new TreeMap<>(hosts).values()) {
+            synchronized (host) {
+                Map<String, Object> datos = new LinkedHashMap<>();
+                datos.put("esperaRateLimiterMs", host.esperaRateLimiterMs);
+                datos.put("backoffMs", host.backoffMs);
+                datos.put("reintentos", new TreeMap<>(host.reintentos));
+                datos.put("hedges", host.hedges);
+                datos.put("cache", new TreeMap<>(host.cache));
+                porHost.put(host.nombre, datos);
+            }
+        }
+        Map<String, Object> porEndpoint = new LinkedHashMap<>();
+        for (Endpoint endpoint : new TreeMap<>(endpoints).values()) {
+            synchronized (endpoint) {
+                Map<String, Object> datos = new LinkedHashMap<>();
+                datos.put("requests", endpoint.cantidad);
+                datos.put("totalMs", endpoint.totalMs);
+                datos.put("maxMs", endpoint.maxMs);
+                Map<String, Long> histograma = new LinkedHashMap<>();
+                for (int i = 0; i < endpoint.buckets.length; i++) {
+                    histograma.put(i < BUCKETS_MS.length ? "<=" + BUCKETS_MS[i] : ">" + BUCKETS_MS[BUCKETS_MS.length - 1],
+                            endpoint.buckets[i]);
+                }
+                datos.put("histogramaMs", histograma);
+                datos.put("status", new TreeMap<>(endpoint.status));
+                porEndpoint.put(endpoint.nombre, datos);
+            }
+        }
+        raiz.put("hosts", porHost);
+        raiz.put("endpoints", porEndpoint);
+        try {
+            archivo.getParentFile().mkdirs();
+            mapper.writerWithDefaultPrettyPrinter().writeValue(archivo, raiz);
+        } catch (Exception e) {
+            AppLogger.warn("METRICAS - No se pudo escribir " + archivo + ": " + e.getMessage());
+        }
+    }
+
+    private static Host host(HttpRequest request) {
+        String nombre = request.uri().getHost() != null ? request.uri().getHost() : "";
+        return hosts.computeIfAbsent(nombre, Host::new);
+    }
+
+    /**
+     * "GET api.mercadolibre.com/orders/{id}/notes": los segmentos con ids (numéricos o tipo MLA123456)
+     * se agrupan para no tener un endpoint por orden o item.
+     */
+    static String endpoint(HttpRequest request) {
+        String path = request.uri().getPath() != null ? request.uri().getPath() : "";
+        StringBuilder sb = new StringBuilder(request.method()).append(' ').append(request.uri().getHost());
+        for (String segmento : path.split("/")) {
+            if (segmento.isEmpty()) continue;
+            sb.append('/').append(esId(segmento) ? "{id}" : segmento);
+        }
+        return sb.toString();
+    }
+
+    private static boolean esId(String segmento) {
+        int digitos = 0;
+        for (int i = 0; i < segmento.length(); i++) {
+            if (Character.isDigit(segmento.charAt(i))) digitos++;
+        }
+        // "v1" o "v2" son versiones de API, no ids
+        return digitos > 0 && (digitos == segmento.length() || segmento.length() > 3);
+    }
+
+    private static final class Endpoint {
+        final String nombre;
+        final long[] buckets = new long[BUCKETS_MS.length + 1];
+        final Map<String, Long> status = new TreeMap<>();
+        long cantidad;
+        long totalMs;
+        long maxMs;
+
+        Endpoint(String nombre) {
+            this.nombre = nombre;
+        }
+
+        synchronized void registrar(long latenciaMs, String resultado) {
+            int i = 0;
+            while (i < BUCKETS_MS.length && latenciaMs > BUCKETS_MS[i]) i++;
+            buckets[i]++;
+            cantidad++;
+            totalMs += latenciaMs;
+            maxMs = Math.max(maxMs, latenciaMs);
+            status.merge(resultado, 1L, Long::sum);
+        }
+
+        /**
+         * Percentil aproximado: límite superior del bucket donde cae.
+         */
+        String percentil(double p) {
+            long objetivo = (long) Math.ceil(p * cantidad);
+            long acumulado = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                acumulado += buckets[i];
+                if (acumulado >= objetivo) {
+                    return i < BUCKETS_MS.length ? "<=" + BUCKETS_MS[i] + " ms" : ">" + BUCKETS_MS[BUCKETS_MS.length - 1] + " ms";
+                }
+            }
+            return "-";
+        }
+    }
+
+    private static final class Host {
+        final String nombre;
+        final Map<String, Long> reintentos = new TreeMap<>();
+        final Map<String, Long> cache = new TreeMap<>();
+        long esperaRateLimiterMs;
+        long backoffMs;
+        long hedges;
+
+        Host(String nombre) {
+            this.nombre = nombre;
+        }
+    }
+}
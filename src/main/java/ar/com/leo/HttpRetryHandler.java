@@ -1,14 +1,21 @@
 package ar.com.leo;
 
-import com.google.common.util.concurrent.RateLimiter;
-
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
 
@@ -17,13 +24,21 @@ public class HttpRetryHandler {
     public static final Path BASE_SECRET_DIR = Paths.get(
             System.getenv("PROGRAMDATA") != null ? System.getenv("PROGRAMDATA") : System.getProperty("java.io.tmpdir"),
             "SuperMaster", "secrets");
+    // Estado local persistente entre corridas (no secreto): índices, ledgers, journals
+    public static final Path BASE_ESTADO_DIR = BASE_SECRET_DIR.resolveSibling("estado");
     private static final int MAX_RETRIES = 3;
     private static final int MAX_RETRIES_RATE_LIMIT = 5;
     private static final int MAX_RETRIES_AUTH = 2;
-    private static final long MAX_WAIT_MS = 300000;
+    static final long MAX_WAIT_MS = 300000;
+    private static final long REQUEST_TIMEOUT_MS = 60000;
     private final long BASE_WAIT_MS;
-    private final RateLimiter rateLimiter;
-    private final Runnable onAuthError;
+    private final double permitsPerSecond;
+    // Un limitador adaptativo por host, que arranca en permitsPerSecond
+    private final ConcurrentHashMap<String, AdaptiveRateLimiter> rateLimiters = new ConcurrentHashMap<>();
+    private final Supplier<CompletableFuture<?>> onAuthError;
+    private volatile RequestHedger hedger;
+    // Sufijo del circuit breaker: null = el compartido por host
+    private volatile String circuitoPropio;
 
     private final HttpClient client;
 
@@ -31,115 +46,525 @@ public class HttpRetryHandler {
         this(client, BASE_WAIT_MS, permitsPerSecond, null);
     }
 
-    public HttpRetryHandler(HttpClient client, long BASE_WAIT_MS, double permitsPerSecond, Runnable onAuthError) {
+    /**
+     * @param onAuthError renovación de credenciales tras un 401; el reintento sale cuando su future termina.
+     *                    En {@link #sendWithRetry(Supplier)} eso bloquea el thread del request hasta que termine
+     *                    la renovación; en {@link #sendWithRetryAsync(Supplier)} el reintento se encadena al future
+     *                    sin ocupar un thread mientras tanto.
+     */
+    public HttpRetryHandler(HttpClient client, long BASE_WAIT_MS, double permitsPerSecond,
+                            Supplier<CompletableFuture<?>> onAuthError) {
         this.client = client;
         this.BASE_WAIT_MS = BASE_WAIT_MS;
-        this.rateLimiter = RateLimiter.create(permitsPerSecond);
+        this.permitsPerSecond = permitsPerSecond;
         this.onAuthError = onAuthError;
     }
 
     public HttpResponse<String> sendWithRetry(Supplier<HttpRequest> requestSupplier) {
-        HttpResponse<String> response = null;
-        int authRetries = 0;
-        int rateLimitRetries = 0;
+        return sendWithRetry(requestSupplier, HttpResponse.BodyHandlers.ofString());
+    }
 
-        for (int attempt = 1; attempt <= MAX_RETRIES; attempt++) {
-            try {
-                rateLimiter.acquire();
+    /**
+     * Igual que {@link #sendWithRetry(Supplier)} pero con un BodyHandler propio, por ejemplo
+     * {@code ofInputStream()} para parsear el cuerpo en streaming sin armar el String completo.
+     * Los cuerpos de las respuestas descartadas por reintento se cierran acá.
+     */
+    public <T> HttpResponse<T> sendWithRetry(Supplier<HttpRequest> requestSupplier, HttpResponse.BodyHandler<T> bodyHandler) {
+        return enviarConReintentos(requestSupplier, bodyHandler, new RetryState(false));
+    }
 
-                HttpRequest request = requestSupplier.get(); // request actualizado
-                response = client.send(request, HttpResponse.BodyHandlers.ofString());
-                int status = response.statusCode();
+    /**
+     * Para requests que no se pueden repetir sin riesgo (por ejemplo un POST que agrega una nota):
+     * igual que {@link #sendWithRetry(Supplier)}, pero ante un 5xx o un error de conexión no se reintenta,
+     * porque el servidor pudo haberlo procesado y repetirlo lo duplicaría. Sí se reintenta ante
+     * 401/409/423/429, que se rechazan sin procesar.
+     */
+    public HttpResponse<String> sendSinRepetir(Supplier<HttpRequest> requestSupplier) {
+        return enviarConReintentos(requestSupplier, HttpResponse.BodyHandlers.ofString(), new RetryState(true));
+    }
 
-                // ---- OK ----
-                if (status >= 200 && status < 300)
-                    return response;
+    private <T> HttpResponse<T> enviarConReintentos(Supplier<HttpRequest> requestSupplier,
+                                                    HttpResponse.BodyHandler<T> bodyHandler, RetryState state) {
+        HttpResponse<T> response = null;
 
-                // ---- Token expirado ----
-                if (status == 401) {
-                    if (onAuthError == null) {
-                        AppLogger.warn("401 Unauthorized - Sin handler de autenticación configurado.");
-                        return response;
-                    }
-                    authRetries++;
-                    if (authRetries > MAX_RETRIES_AUTH) {
-                        AppLogger.error("401 Unauthorized - Máximo de reintentos de autenticación alcanzado ("
-                                + authRetries + ")", null);
-                        return response;
-                    }
-                    AppLogger.warn("401 Unauthorized → actualizando tokens... (intento " + authRetries + "/"
-                            + MAX_RETRIES_AUTH + ")");
-                    onAuthError.run();
-                    continue;
-                }
+        while (true) {
+            HttpRequest request = prepararRequest(requestSupplier.get()); // request actualizado
+            if (RunDeadline.vencido()) {
+                RunDeadline.marcarDegradado("Sin tiempo para " + descripcion(request));
+                return response;
+            }
+            CircuitBreaker circuitBreaker = circuitBreaker(request);
+            if (circuitBreaker.rechazaAhora()) {
+                // Host caído: fallar al instante con lo que haya, sin gastar un permiso del rate limiter
+                return response;
+            }
 
-                // ---- Error de concurrencia ----
-                if (status == 409 || status == 423) {
-                    if (attempt >= MAX_RETRIES) {
-                        AppLogger.error("409/423 Conflict - Máximo de reintentos alcanzado (" + attempt + ")", null);
-                        return response;
-                    }
-                    long waitMs = BASE_WAIT_MS + ThreadLocalRandom.current().nextInt(200, 800);
-                    AppLogger.warn("409/423 Conflict (KVS). Retry en " + waitMs + " ms... (intento " + attempt + "/"
-                            + MAX_RETRIES + ")");
-                    Thread.sleep(waitMs);
-                    continue;
+            Decision decision;
+            // permitir() puede habilitar el request de prueba del circuito: si no llega a registrar
+            // un resultado (interrupción, excepción inesperada) hay que liberarlo
+            boolean permitido = false;
+            boolean registrado = false;
+            try {
+                AdaptiveRateLimiter rateLimiter = rateLimiter(request);
+                long esperaRateLimiterMs = rateLimiter.acquire(RunDeadline.restanteMs());
+                if (esperaRateLimiterMs < 0) {
+                    RunDeadline.marcarDegradado("Espera del rate limiter excede el deadline: " + descripcion(request));
+                    return response;
                 }
+                HttpMetrics.registrarEsperaRateLimiter(request, esperaRateLimiterMs);
 
-                // ---- Too Many Requests ----
-                if (status == 429) {
-                    rateLimitRetries++;
-                    if (rateLimitRetries > MAX_RETRIES_RATE_LIMIT) {
-                        AppLogger.error("429 Too Many Requests - Máximo de reintentos de rate limit alcanzado ("
-                                + rateLimitRetries + ")", null);
-                        return response;
-                    }
-                    long waitMs = parseRetryAfter(response, BASE_WAIT_MS * (long) Math.pow(2, rateLimitRetries));
-                    // Limitar el tiempo de espera máximo
-                    waitMs = Math.min(waitMs, MAX_WAIT_MS);
-                    AppLogger.warn("429 Too Many Requests. Retry en " + (waitMs / 1000) + " segundos... (intento "
-                            + rateLimitRetries + "/" + MAX_RETRIES_RATE_LIMIT + ")");
-                    Thread.sleep(waitMs);
-                    // No contar como intento normal, continuar
-                    attempt--; // No contar este como intento normal
-                    continue;
+                if (!circuitBreaker.permitir()) {
+                    // Otro request tomó la prueba del circuito mientras se esperaba el permiso
+                    return response;
                 }
-
-                // ---- Errores de servidor ----
-                if (status >= 500 && status < 600) {
-                    if (attempt >= MAX_RETRIES) {
-                        AppLogger.error("5xx Error - Máximo de reintentos alcanzado (" + attempt + ")", null);
-                        return response;
-                    }
-                    long waitMs = BASE_WAIT_MS * (long) Math.pow(2, attempt - 1);
-                    AppLogger.warn(
-                            "5xx Error. Retry en " + waitMs + " ms... (intento " + attempt + "/" + MAX_RETRIES + ")");
-                    Thread.sleep(waitMs);
-                    continue;
+                permitido = true;
+                response = enviar(request, new DecompressingBodyHandler<>(bodyHandler), rateLimiter);
+                rateLimiter.registrarRespuesta(response);
+                registrarEnCircuito(circuitBreaker, response);
+                registrado = true;
+                decision = evaluarRespuesta(response, state);
+            } catch (IOException e) {
+                circuitBreaker.registrarFalla();
+                registrado = true;
+                decision = evaluarIOException(request, state);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return response;
+            } finally {
+                if (permitido && !registrado) {
+                    circuitBreaker.cancelarPrueba();
                 }
+            }
 
-                // ---- Errores 400-499 no recuperables ----
+            if (!decision.reintentar() || circuitBreaker.getEstado() == CircuitBreaker.Estado.ABIERTO) {
                 return response;
-
-            } catch (IOException e) {
-                long waitMs = BASE_WAIT_MS * (long) Math.pow(2, attempt - 1);
-                AppLogger.warn("IOException. Retry en " + waitMs + " ms... (" + attempt + "/" + MAX_RETRIES + ")");
+            }
+            if (!RunDeadline.alcanza(decision.esperaMs())) {
+                RunDeadline.marcarDegradado("Reintento omitido, la espera de " + decision.esperaMs()
+                        + " ms excede el deadline: " + descripcion(request));
+                return response;
+            }
+            descartarCuerpo(response);
+            HttpMetrics.registrarReintento(request, decision.causa(), decision.esperaMs());
+            if (decision.renovarTokens()) {
+                // Bloquea este thread hasta que termine la renovación (compartida con los demás requests)
+                onAuthError.get().join();
+            }
+            if (decision.esperaMs() > 0) {
                 try {
-                    Thread.sleep(waitMs);
+                    Thread.sleep(decision.esperaMs());
                 } catch (InterruptedException ex) {
                     Thread.currentThread().interrupt();
                     return response;
                 }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                return response;
             }
         }
+    }
+
+    /**
+     * GET a través de la caché en disco ({@link HttpCache}).
+     * Dentro del ttl la respuesta sale de la caché sin tocar la red ni el rate limiter; pasado el ttl se
+     * revalida con If-None-Match / If-Modified-Since y un 304 devuelve el cuerpo guardado.
+     * Con ttl cero siempre se revalida (útil para respuestas que traen stock).
+     * Solo se guardan respuestas 200.
+     */
+    public HttpResponse<String> sendWithCache(Supplier<HttpRequest> requestSupplier, Duration ttl) {
+        HttpRequest original = requestSupplier.get();
+        String url = original.uri().toString();
+        HttpCache.Entrada entrada = HttpCache.leer(url);
+        if (entrada != null && entrada.vigente(ttl)) {
+            HttpMetrics.registrarCache(original, "hit");
+            return new HttpCache.RespuestaCacheada(original, entrada.body());
+        }
+
+        Supplier<HttpRequest> condicional = requestSupplier;
+        if (entrada != null && entrada.revalidable()) {
+            condicional = () -> {
+                HttpRequest.Builder builder = HttpRequest.newBuilder(requestSupplier.get(), (name, value) -> true);
+                if (entrada.etag() != null) builder.header("If-None-Match", entrada.etag());
+                if (entrada.lastModified() != null) builder.header("If-Modified-Since", entrada.lastModified());
+                return builder.build();
+            };
+        }
 
+        HttpResponse<String> response = sendWithRetry(condicional);
+        if (response == null) {
+            return null;
+        }
+        if (response.statusCode() == 304 && entrada != null) {
+            HttpMetrics.registrarCache(original, "revalidado");
+            HttpCache.guardar(entrada.renovada());
+            return new HttpCache.RespuestaCacheada(response.request(), entrada.body());
+        }
+        HttpMetrics.registrarCache(original, "miss");
+        if (response.statusCode() == 200) {
+            String etag = response.headers().firstValue("ETag").orElse(null);
+            String lastModified = response.headers().firstValue("Last-Modified").orElse(null);
+            if (ttl.isPositive() || etag != null || lastModified != null) {
+                HttpCache.guardar(new HttpCache.Entrada(url, etag, lastModified, System.currentTimeMillis(), response.body()));
+            }
+        }
         return response;
     }
 
-    private long parseRetryAfter(HttpResponse<String> response, long defaultMs) {
+    /**
+     * Versión no bloqueante de {@link #sendWithRetry(Supplier)}.
+     * Aplica la misma política de reintentos (401/409/423/429/5xx/IOException), pero las esperas del
+     * rate limiter y los backoffs se programan con un timer en lugar de dormir un thread.
+     * Si se agotan los reintentos completa con la última respuesta recibida (o null si nunca hubo respuesta).
+     */
+    public CompletableFuture<HttpResponse<String>> sendWithRetryAsync(Supplier<HttpRequest> requestSupplier) {
+        return sendWithRetryAsync(requestSupplier, HttpResponse.BodyHandlers.ofString());
+    }
+
+    public <T> CompletableFuture<HttpResponse<T>> sendWithRetryAsync(Supplier<HttpRequest> requestSupplier,
+                                                                     HttpResponse.BodyHandler<T> bodyHandler) {
+        return intentarAsync(requestSupplier, bodyHandler, new RetryState(false), null);
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> intentarAsync(Supplier<HttpRequest> requestSupplier,
+                                                                 HttpResponse.BodyHandler<T> bodyHandler,
+                                                                 RetryState state,
+                                                                 HttpResponse<T> ultimaRespuesta) {
+        HttpRequest request = prepararRequest(requestSupplier.get());
+        if (RunDeadline.vencido()) {
+            RunDeadline.marcarDegradado("Sin tiempo para " + descripcion(request));
+            return CompletableFuture.completedFuture(ultimaRespuesta);
+        }
+        CircuitBreaker circuitBreaker = circuitBreaker(request);
+        if (circuitBreaker.rechazaAhora()) {
+            return CompletableFuture.completedFuture(ultimaRespuesta);
+        }
+        AdaptiveRateLimiter rateLimiter = rateLimiter(request);
+        long inicioEspera = System.currentTimeMillis();
+        return adquirirPermisoAsync(rateLimiter).thenCompose(permiso -> {
+            if (!permiso) {
+                RunDeadline.marcarDegradado("Espera del rate limiter excede el deadline: " + descripcion(request));
+                return CompletableFuture.completedFuture(ultimaRespuesta);
+            }
+            HttpMetrics.registrarEsperaRateLimiter(request, System.currentTimeMillis() - inicioEspera);
+            if (!circuitBreaker.permitir()) {
+                return CompletableFuture.completedFuture(ultimaRespuesta);
+            }
+            CompletableFuture<HttpResponse<T>> envio;
+            try {
+                envio = enviarAsync(request, new DecompressingBodyHandler<>(bodyHandler), rateLimiter);
+            } catch (RuntimeException e) {
+                circuitBreaker.cancelarPrueba();
+                throw e;
+            }
+            return envio
+                    .handle((response, error) -> {
+                        Throwable causa = error instanceof CompletionException && error.getCause() != null
+                                ? error.getCause() : error;
+                        if (response != null) {
+                            rateLimiter.registrarRespuesta(response);
+                            registrarEnCircuito(circuitBreaker, response);
+                        } else if (causa instanceof IOException) {
+                            circuitBreaker.registrarFalla();
+                        } else {
+                            // Cancelado o error inesperado: no dice nada del host
+                            circuitBreaker.cancelarPrueba();
+                            return CompletableFuture.<HttpResponse<T>>failedFuture(causa);
+                        }
+                        Decision decision;
+                        HttpResponse<T> actual = response;
+                        if (error != null) {
+                            actual = ultimaRespuesta;
+                            decision = evaluarIOException(request, state);
+                        } else {
+                            decision = evaluarRespuesta(response, state);
+                        }
+
+                        if (!decision.reintentar() || circuitBreaker.getEstado() == CircuitBreaker.Estado.ABIERTO) {
+                            return CompletableFuture.completedFuture(actual);
+                        }
+                        if (!RunDeadline.alcanza(decision.esperaMs())) {
+                            RunDeadline.marcarDegradado("Reintento omitido, la espera de " + decision.esperaMs()
+                                    + " ms excede el deadline: " + descripcion(request));
+                            return CompletableFuture.completedFuture(actual);
+                        }
+                        descartarCuerpo(actual);
+                        HttpMetrics.registrarReintento(request, decision.causa(), decision.esperaMs());
+                        final HttpResponse<T> previa = actual;
+                        CompletableFuture<?> antesDelReintento = CompletableFuture.runAsync(() -> {
+                        }, demorado(decision.esperaMs()));
+                        if (decision.renovarTokens()) {
+                            // El reintento se encadena a la renovación, sin bloquear un thread esperándola
+                            antesDelReintento = antesDelReintento.thenCompose(v -> onAuthError.get());
+                        }
+                        return antesDelReintento
+                                .thenCompose(v -> intentarAsync(requestSupplier, bodyHandler, state, previa));
+                    })
+                    .thenCompose(f -> f);
+        });
+    }
+
+    /**
+     * Activa el hedging de GETs: si un GET tarda más que el percentil 95 reciente de su host,
+     * se manda una copia (con permiso del mismo rate limiter) y gana la primera respuesta.
+     */
+    public HttpRetryHandler habilitarHedging() {
+        this.hedger = new RequestHedger();
+        return this;
+    }
+
+    /**
+     * Usa un circuit breaker propio por host para este handler en lugar del compartido, por ejemplo cuando
+     * cada tienda de una misma API falla por su lado y no debe cortar a las demás.
+     */
+    public HttpRetryHandler conCircuitoPropio(String nombre) {
+        this.circuitoPropio = nombre;
+        return this;
+    }
+
+    private CircuitBreaker circuitBreaker(HttpRequest request) {
+        String nombre = circuitoPropio;
+        return CircuitBreaker.de(nombre == null ? host(request) : host(request) + " (" + nombre + ")");
+    }
+
+    /**
+     * Envía el request (con hedging si corresponde) y registra su latencia y resultado en HttpMetrics.
+     */
+    private <T> HttpResponse<T> enviar(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler,
+                                       AdaptiveRateLimiter rateLimiter) throws IOException, InterruptedException {
+        long inicio = System.nanoTime();
+        try {
+            HttpResponse<T> response;
+            if (!usarHedging(request)) {
+                response = client.send(request, bodyHandler);
+            } else {
+                try {
+                    response = hedger.enviar(client, request, bodyHandler, rateLimiter).get();
+                } catch (ExecutionException e) {
+                    Throwable causa = e.getCause();
+                    if (causa instanceof IOException io) throw io;
+                    if (causa instanceof RuntimeException re) throw re;
+                    throw new IOException(causa);
+                }
+            }
+            HttpMetrics.registrarEnvio(request, msDesde(inicio), String.valueOf(response.statusCode()));
+            return response;
+        } catch (IOException e) {
+            HttpMetrics.registrarEnvio(request, msDesde(inicio), e.getClass().getSimpleName());
+            throw e;
+        }
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> enviarAsync(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler,
+                                                               AdaptiveRateLimiter rateLimiter) {
+        long inicio = System.nanoTime();
+        CompletableFuture<HttpResponse<T>> envio = usarHedging(request)
+                ? hedger.enviar(client, request, bodyHandler, rateLimiter)
+                : client.sendAsync(request, bodyHandler);
+        return envio.whenComplete((response, error) -> {
+            if (response != null) {
+                HttpMetrics.registrarEnvio(request, msDesde(inicio), String.valueOf(response.statusCode()));
+            } else {
+                Throwable causa = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                HttpMetrics.registrarEnvio(request, msDesde(inicio), causa.getClass().getSimpleName());
+            }
+        });
+    }
+
+    private static long msDesde(long inicioNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicioNanos);
+    }
+
+    private boolean usarHedging(HttpRequest request) {
+        return hedger != null && "GET".equals(request.method());
+    }
+
+    /**
+     * Obtiene un permiso del rate limiter sin bloquear: lo reserva en el momento (en la misma fila que los
+     * requests bloqueantes) y completa cuando llega su turno.
+     * Completa con false, sin reservar, si la espera ya no entra en el deadline de la corrida.
+     */
+    private static CompletableFuture<Boolean> adquirirPermisoAsync(AdaptiveRateLimiter rateLimiter) {
+        long esperaMs = rateLimiter.reservar(RunDeadline.restanteMs());
+        if (esperaMs < 0) {
+            return CompletableFuture.completedFuture(false);
+        }
+        if (esperaMs == 0) {
+            return CompletableFuture.completedFuture(true);
+        }
+        return CompletableFuture.supplyAsync(() -> true, demorado(esperaMs));
+    }
+
+    /**
+     * Completa el request antes de enviarlo: pide la respuesta comprimida (gzip/deflate) salvo que el
+     * request ya negocie su propio encoding, y le pone un timeout que no pase el deadline de la corrida.
+     */
+    private static HttpRequest prepararRequest(HttpRequest request) {
+        boolean conEncoding = request.headers().firstValue("Accept-Encoding").isPresent();
+        long restanteMs = RunDeadline.restanteMs();
+        boolean conTimeout = request.timeout().isPresent() && request.timeout().get().toMillis() <= restanteMs;
+        if (conEncoding && conTimeout) {
+            return request;
+        }
+        HttpRequest.Builder builder = HttpRequest.newBuilder(request, (name, value) -> true);
+        if (!conEncoding) {
+            builder.header("Accept-Encoding", DecompressingBodyHandler.ACCEPT_ENCODING);
+        }
+        if (!conTimeout) {
+            long timeoutMs = request.timeout().map(Duration::toMillis).orElse(REQUEST_TIMEOUT_MS);
+            builder.timeout(Duration.ofMillis(Math.max(1, Math.min(timeoutMs, restanteMs))));
+        }
+        return builder.build();
+    }
+
+    private static String descripcion(HttpRequest request) {
+        return request.method() + " " + host(request) + request.uri().getPath();
+    }
+
+    private static Executor demorado(long ms) {
+        return CompletableFuture.delayedExecutor(ms, TimeUnit.MILLISECONDS, HttpClientFactory.getExecutor());
+    }
+
+    private AdaptiveRateLimiter rateLimiter(HttpRequest request) {
+        return rateLimiters.computeIfAbsent(host(request), h -> new AdaptiveRateLimiter(h, permitsPerSecond));
+    }
+
+    private static String host(HttpRequest request) {
+        String host = request.uri().getHost();
+        return host != null ? host : "";
+    }
+
+    /**
+     * Los 5xx cuentan como falla del host; cualquier otra respuesta (incluso 4xx o 429) indica que está vivo.
+     */
+    private static void registrarEnCircuito(CircuitBreaker circuitBreaker, HttpResponse<?> response) {
+        if (response.statusCode() >= 500) {
+            circuitBreaker.registrarFalla();
+        } else {
+            circuitBreaker.registrarExito();
+        }
+    }
+
+    /**
+     * Decide qué hacer con una respuesta recibida. Compartido por el modo bloqueante y el asíncrono.
+     */
+    private Decision evaluarRespuesta(HttpResponse<?> response, RetryState state) {
+        int status = response.statusCode();
+
+        // ---- OK ----
+        if (status >= 200 && status < 300)
+            return Decision.DEVOLVER;
+
+        // ---- Token expirado ----
+        if (status == 401) {
+            if (onAuthError == null) {
+                AppLogger.warn("401 Unauthorized - Sin handler de autenticación configurado.");
+                return Decision.DEVOLVER;
+            }
+            state.authRetries++;
+            if (state.authRetries > MAX_RETRIES_AUTH) {
+                AppLogger.error("401 Unauthorized - Máximo de reintentos de autenticación alcanzado ("
+                        + state.authRetries + ")", null);
+                return Decision.DEVOLVER;
+            }
+            AppLogger.warn("401 Unauthorized → actualizando tokens... (intento " + state.authRetries + "/"
+                    + MAX_RETRIES_AUTH + ")");
+            return state.siguienteIntento(new Decision(0, true, "401"));
+        }
+
+        // ---- Error de concurrencia ----
+        if (status == 409 || status == 423) {
+            if (state.attempt >= MAX_RETRIES) {
+                AppLogger.error("409/423 Conflict - Máximo de reintentos alcanzado (" + state.attempt + ")", null);
+                return Decision.DEVOLVER;
+            }
+            long waitMs = BASE_WAIT_MS + ThreadLocalRandom.current().nextInt(200, 800);
+            AppLogger.warn("409/423 Conflict (KVS). Retry en " + waitMs + " ms... (intento " + state.attempt + "/"
+                    + MAX_RETRIES + ")");
+            return state.siguienteIntento(new Decision(waitMs, false, "409/423"));
+        }
+
+        // ---- Too Many Requests ----
+        if (status == 429) {
+            state.rateLimitRetries++;
+            if (state.rateLimitRetries > MAX_RETRIES_RATE_LIMIT) {
+                AppLogger.error("429 Too Many Requests - Máximo de reintentos de rate limit alcanzado ("
+                        + state.rateLimitRetries + ")", null);
+                return Decision.DEVOLVER;
+            }
+            long waitMs = parseRetryAfter(response, BASE_WAIT_MS * (long) Math.pow(2, state.rateLimitRetries));
+            // Limitar el tiempo de espera máximo
+            waitMs = Math.min(waitMs, MAX_WAIT_MS);
+            AppLogger.warn("429 Too Many Requests. Retry en " + (waitMs / 1000) + " segundos... (intento "
+                    + state.rateLimitRetries + "/" + MAX_RETRIES_RATE_LIMIT + ")");
+            // No contar como intento normal
+            return new Decision(waitMs, false, "429");
+        }
+
+        // ---- Errores de servidor ----
+        if (status >= 500 && status < 600) {
+            if (state.sinRepetir) {
+                AppLogger.warn("5xx Error en " + response.request().method() + ", no se reintenta (pudo haberse procesado)");
+                return Decision.DEVOLVER;
+            }
+            if (state.attempt >= MAX_RETRIES) {
+                AppLogger.error("5xx Error - Máximo de reintentos alcanzado (" + state.attempt + ")", null);
+                return Decision.DEVOLVER;
+            }
+            long waitMs = BASE_WAIT_MS * (long) Math.pow(2, state.attempt - 1);
+            AppLogger.warn(
+                    "5xx Error. Retry en " + waitMs + " ms... (intento " + state.attempt + "/" + MAX_RETRIES + ")");
+            return state.siguienteIntento(new Decision(waitMs, false, "5xx"));
+        }
+
+        // ---- Errores 400-499 no recuperables ----
+        return Decision.DEVOLVER;
+    }
+
+    private Decision evaluarIOException(HttpRequest request, RetryState state) {
+        if (state.sinRepetir) {
+            AppLogger.warn("IOException en " + request.method() + ", no se reintenta (pudo haberse procesado)");
+            return Decision.DEVOLVER;
+        }
+        if (state.attempt >= MAX_RETRIES) {
+            AppLogger.error("IOException - Máximo de reintentos alcanzado (" + state.attempt + ")", null);
+            return Decision.DEVOLVER;
+        }
+        long waitMs = BASE_WAIT_MS * (long) Math.pow(2, state.attempt - 1);
+        AppLogger.warn("IOException. Retry en " + waitMs + " ms... (" + state.attempt + "/" + MAX_RETRIES + ")");
+        return state.siguienteIntento(new Decision(waitMs, false, "IOException"));
+    }
+
+
+    /**
+     * Devuelve el cuerpo de una respuesta como texto, sea cual sea el BodyHandler usado.
+     * Pensado para loguear errores; consume el cuerpo si es un InputStream.
+     */
+    public static String cuerpoComoTexto(HttpResponse<?> response) {
+        if (response == null) return "sin respuesta";
+        Object body = response.body();
+        if (body instanceof InputStream in) {
+            try (in) {
+                return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                return "(cuerpo ilegible: " + e.getMessage() + ")";
+            }
+        }
+        if (body instanceof byte[] bytes) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        return String.valueOf(body);
+    }
+
+    /**
+     * Cierra el cuerpo de una respuesta que no se va a usar para liberar la conexión.
+     */
+    private static void descartarCuerpo(HttpResponse<?> response) {
+        if (response != null && response.body() instanceof InputStream in) {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    static long parseRetryAfter(HttpResponse<?> response, long defaultMs) {
         return response.headers().firstValue("Retry-After").map(value -> {
             try {
                 // si es número → segundos
@@ -159,4 +584,36 @@ public class HttpRetryHandler {
         }).orElse(defaultMs);
     }
 
+    /**
+     * Contadores de reintentos de un envío. Los 429 no consumen intentos normales.
+     */
+    private static final class RetryState {
+        // Ver sendSinRepetir: sin reintentos ante 5xx / IOException
+        final boolean sinRepetir;
+        int attempt = 1;
+        int authRetries;
+        int rateLimitRetries;
+
+        RetryState(boolean sinRepetir) {
+            this.sinRepetir = sinRepetir;
+        }
+
+        Decision siguienteIntento(Decision decision) {
+            attempt++;
+            return decision;
+        }
+    }
+
+    /**
+     * Resultado de evaluar una respuesta: esperaMs < 0 significa devolver la respuesta tal cual.
+     * causa identifica el motivo del reintento para las métricas.
+     */
+    private record Decision(long esperaMs, boolean renovarTokens, String causa) {
+        static final Decision DEVOLVER = new Decision(-1, false, null);
+
+        boolean reintentar() {
+            return esperaMs >= 0;
+        }
+    }
+
 }
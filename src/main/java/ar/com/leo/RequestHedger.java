@@ -0,0 +1,116 @@
+package ar.com.leo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hedging de GETs idempotentes: si un request no respondió dentro del percentil 95 de las latencias
+ * recientes de su host, se manda una segunda copia y gana la primera respuesta.
+ * La copia consume un permiso del mismo rate limiter; si no hay permiso disponible en ese momento,
+ * no se manda, así el hedging nunca provoca 429.
+ */
+public class RequestHedger {
+
+    private static final double PERCENTIL = 0.95;
+    private static final int MUESTRAS = 100;
+    private static final int MUESTRAS_MINIMAS = 20;
+    private static final long UMBRAL_MINIMO_MS = 300;
+
+    private final ConcurrentHashMap<String, VentanaLatencias> ventanas = new ConcurrentHashMap<>();
+
+    public <T> CompletableFuture<HttpResponse<T>> enviar(HttpClient client, HttpRequest request,
+                                                         HttpResponse.BodyHandler<T> bodyHandler,
+                                                         AdaptiveRateLimiter rateLimiter) {
+        VentanaLatencias ventana = ventanas.computeIfAbsent(
+                request.uri().getHost() != null ? request.uri().getHost() : "", h -> new VentanaLatencias());
+        long umbralMs = ventana.umbralMs();
+
+        CompletableFuture<HttpResponse<T>> resultado = new CompletableFuture<>();
+        AtomicInteger pendientes = new AtomicInteger(1);
+
+        CompletableFuture<HttpResponse<T>> primario = client.sendAsync(request, bodyHandler);
+        medir(primario, ventana).whenComplete((response, error) -> completar(resultado, pendientes, response, error));
+
+        if (umbralMs > 0 && RunDeadline.alcanza(umbralMs)) {
+            CompletableFuture.delayedExecutor(umbralMs, TimeUnit.MILLISECONDS, HttpClientFactory.getExecutor()).execute(() -> {
+                if (resultado.isDone() || !rateLimiter.tryAcquire()) {
+                    return;
+                }
+                pendientes.incrementAndGet();
+                HttpMetrics.registrarHedge(request);
+                AppLogger.info("HEDGE - Sin respuesta en " + umbralMs + " ms, enviando copia de "
+                        + request.uri().getHost() + request.uri().getPath());
+                CompletableFuture<HttpResponse<T>> copia = client.sendAsync(request, bodyHandler);
+                medir(copia, ventana).whenComplete((response, error) -> completar(resultado, pendientes, response, error));
+                // Cancelar la copia que pierda (cancel sobre una ya completada no hace nada)
+                resultado.whenComplete((r, e) -> copia.cancel(true));
+            });
+        }
+        resultado.whenComplete((r, e) -> primario.cancel(true));
+
+        return resultado;
+    }
+
+    /**
+     * Gana la primera respuesta; un error solo se propaga si no queda otra copia en vuelo.
+     * El cuerpo de la respuesta perdedora se descarta.
+     */
+    private static <T> void completar(CompletableFuture<HttpResponse<T>> resultado, AtomicInteger pendientes,
+                                      HttpResponse<T> response, Throwable error) {
+        int quedan = pendientes.decrementAndGet();
+        if (error == null) {
+            if (!resultado.complete(response) && response.body() instanceof InputStream in) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        } else if (quedan == 0) {
+            resultado.completeExceptionally(error);
+        }
+    }
+
+    private static <T> CompletableFuture<HttpResponse<T>> medir(CompletableFuture<HttpResponse<T>> envio,
+                                                                VentanaLatencias ventana) {
+        long inicio = System.nanoTime();
+        return envio.whenComplete((response, error) -> {
+            if (error == null) {
+                ventana.registrar(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio));
+            }
+        });
+    }
+
+    /**
+     * Últimas latencias de un host, para calcular el umbral de hedging.
+     */
+    private static final class VentanaLatencias {
+        private final long[] muestras = new long[MUESTRAS];
+        private int cantidad;
+        private int siguiente;
+
+        synchronized void registrar(long ms) {
+            muestras[siguiente] = ms;
+            siguiente = (siguiente + 1) % MUESTRAS;
+            if (cantidad < MUESTRAS) cantidad++;
+        }
+
+        /**
+         * @return percentil 95 de las latencias recientes, o -1 si todavía no hay suficientes muestras
+         */
+        synchronized long umbralMs() {
+            if (cantidad < MUESTRAS_MINIMAS) return -1;
+            long[] ordenadas = Arrays.copyOf(muestras, cantidad);
+            Arrays.sort(ordenadas);
+            int indice = (int) Math.ceil(PERCENTIL * cantidad) - 1;
+            return Math.max(UMBRAL_MINIMO_MS, ordenadas[indice]);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package ar.com.leo;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Deadline de la corrida de pickit en curso ("el pickit tiene que estar listo en N segundos").
+ * Lo inicia PickitGenerator (solo si se configuró un tiempo máximo) y lo consultan todas las etapas y cada decisión de reintento de
+ * HttpRetryHandler: lo que no llega a terminar en el tiempo restante se omite y la corrida
+ * queda marcada como degradada en lugar de colgarse.
+ * Sin corrida activa no hay límite.
+ */
+public class RunDeadline {
+
+    private static volatile long vencimiento = Long.MAX_VALUE;
+    private static final List<String> degradaciones = new ArrayList<>();
+
+    public static void iniciar(Duration tiempoMaximo) {
+        synchronized (degradaciones) {
+            degradaciones.clear();
+        }
+        vencimiento = System.currentTimeMillis() + tiempoMaximo.toMillis();
+    }
+
+    /**
+     * Empieza una corrida sin tiempo máximo: solo limpia las omisiones de la corrida anterior.
+     */
+    public static void iniciarSinLimite() {
+        synchronized (degradaciones) {
+            degradaciones.clear();
+        }
+        vencimiento = Long.MAX_VALUE;
+    }
+
+    public static void finalizar() {
+        vencimiento = Long.MAX_VALUE;
+    }
+
+    /**
+     * Milisegundos que le quedan a la corrida (Long.MAX_VALUE si no hay corrida activa, 0 si ya venció).
+     */
+    public static long restanteMs() {
+        long limite = vencimiento;
+        if (limite == Long.MAX_VALUE) return Long.MAX_VALUE;
+        return Math.max(0, limite - System.currentTimeMillis());
+    }
+
+    public static boolean vencido() {
+        return restanteMs() == 0;
+    }
+
+    /**
+     * Indica si una espera de {@code esperaMs} todavía entra en el tiempo restante.
+     */
+    public static boolean alcanza(long esperaMs) {
+        return esperaMs < restanteMs();
+    }
+
+    /**
+     * Registra algo que se omitió por falta de tiempo. El resultado de la corrida queda degradado.
+     */
+    public static void marcarDegradado(String motivo) {
+        synchronized (degradaciones) {
+            degradaciones.add(motivo);
+        }
+        AppLogger.warn("DEADLINE - " + motivo);
+    }
+
+    public static boolean isDegradado() {
+        synchronized (degradaciones) {
+            return !degradaciones.isEmpty();
+        }
+    }
+
+    public static List<String> getDegradaciones() {
+        synchronized (degradaciones) {
+            return new ArrayList<>(degradaciones);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package ar.com.leo.dux;
 
 import ar.com.leo.AppLogger;
+import ar.com.leo.HttpClientFactory;
 import ar.com.leo.HttpRetryHandler;
 import ar.com.leo.dux.model.DuxResponse;
 import ar.com.leo.dux.model.Item;
@@ -17,6 +18,7 @@ import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.function.Supplier;
@@ -26,9 +28,12 @@ import static ar.com.leo.HttpRetryHandler.BASE_SECRET_DIR;
 public class DuxApi {
 
     private static final ObjectMapper mapper = new ObjectMapper();
-    private static final HttpClient httpClient = HttpClient.newHttpClient();
-    // 0.143 permits/sec ≈ 1 request cada ~7 segundos. Con 5s o 5.5s la API devuelve 429 tras muchos requests seguidos.
+    private static final HttpClient httpClient = HttpClientFactory.getSharedClient();
+    // Tasa inicial: 0.143 permits/sec ≈ 1 request cada ~7 segundos. Con 5s o 5.5s la API devuelve 429 tras muchos
+    // requests seguidos. El limitador se ajusta solo a partir de ahí según los 429 y headers de rate limit.
     private static final HttpRetryHandler retryHandler = new HttpRetryHandler(httpClient, 7000L, 0.143);
+    // Con 1 request cada 7 s, repetir la consulta de un producto dentro del minuto sale de la caché
+    private static final Duration TTL_PRODUCTO = Duration.ofMinutes(1);
     private static final Path TOKEN_FILE = BASE_SECRET_DIR.resolve("dux_tokens.json");
     private static TokensDux tokens;
 
@@ -144,7 +149,7 @@ public class DuxApi {
                 .header("authorization", tokens.token)
                 .build();
 
-        HttpResponse<String> response = retryHandler.sendWithRetry(requestBuilder);
+        HttpResponse<String> response = retryHandler.sendWithCache(requestBuilder, TTL_PRODUCTO);
 
         if (response == null || response.statusCode() != 200) {
             String body = response != null ? response.body() : "sin respuesta";
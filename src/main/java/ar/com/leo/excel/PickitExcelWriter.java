@@ -35,6 +35,14 @@ public class PickitExcelWriter {
      * Font Calibri 14, centrado, bordes finos.
      */
     public static File generar(List<PickitItem> items, List<CarrosOrden> carrosOrdenes) throws Exception {
+        return generar(items, carrosOrdenes, false);
+    }
+
+    /**
+     * @param incompleto true si la corrida terminó degradada (se omitieron fuentes o pasos por tiempo);
+     *                   se indica en el título para que no se confunda con un pickit completo.
+     */
+    public static File generar(List<PickitItem> items, List<CarrosOrden> carrosOrdenes, boolean incompleto) throws Exception {
         Path excelDir = Paths.get(Util.getJarFolder(), "Excel");
         Files.createDirectories(excelDir);
 
@@ -141,7 +149,7 @@ public class PickitExcelWriter {
             for (int i = 0; i < HEADERS.length; i++) {
                 Cell cell = titleRow.createCell(i);
                 if (i == 0) {
-                    cell.setCellValue("PICKIT KT - " + fechaHora);
+                    cell.setCellValue("PICKIT KT - " + fechaHora + (incompleto ? " (INCOMPLETO)" : ""));
                 }
                 cell.setCellStyle(titleStyle);
             }
@@ -1,6 +1,9 @@
 package ar.com.leo.fx.services;
 
 import ar.com.leo.AppLogger;
+import ar.com.leo.CircuitBreaker;
+import ar.com.leo.HttpMetrics;
+import ar.com.leo.RunDeadline;
 import ar.com.leo.excel.ExcelManager;
 import ar.com.leo.excel.ExcelManager.ComboEntry;
 import ar.com.leo.excel.ExcelManager.ProductoStock;
@@ -12,14 +15,25 @@ import ar.com.leo.nube.TiendaNubeApi;
 import ar.com.leo.pickit.model.*;
 
 import java.io.File;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class PickitGenerator {
 
     private static final ExecutorService executor = Executors.newFixedThreadPool(4);
+    // Tiempo máximo de una corrida, contado desde que terminó la autenticación; solo con -Dpickit.deadline.segundos
+    private static final Duration TIEMPO_MAXIMO = Long.getLong("pickit.deadline.segundos") != null
+            ? Duration.ofSeconds(Long.getLong("pickit.deadline.segundos")) : null;
+    // Descarga de etiquetas ZPL de ready_to_print al final de la corrida; se activa con -Dpickit.etiquetas=true
+    private static final boolean DESCARGAR_ETIQUETAS = Boolean.getBoolean("pickit.etiquetas");
+    // Nota "impreso" en las órdenes de acuerdo que entraron al pickit; se activa con -Dpickit.marcarImpresas=true
+    private static final boolean MARCAR_IMPRESAS = Boolean.getBoolean("pickit.marcarImpresas");
 
     public static void shutdownExecutors() {
         executor.shutdown();
@@ -42,6 +56,19 @@ public class PickitGenerator {
      * @return Archivo Excel generado
      */
     public static File generarPickit(File stockExcel, File combosExcel, List<ProductoManual> productosManuales) throws Exception {
+        // La autenticación (que puede abrir el diálogo de OAuth) no cuenta para el tiempo máximo
+        RunDeadline.iniciarSinLimite();
+        try {
+            return generar(stockExcel, combosExcel, productosManuales);
+        } finally {
+            RunDeadline.finalizar();
+        }
+    }
+
+    private static File generar(File stockExcel, File combosExcel, List<ProductoManual> productosManuales) throws Exception {
+
+        CircuitBreaker.reiniciarReporte();
+        HttpMetrics.reiniciar();
 
         // Paso 1: Inicializar ML API + obtener userId
         AppLogger.info("PICKIT - Paso 1: Inicializando MercadoLibre API...");
@@ -57,50 +84,49 @@ public class PickitGenerator {
         if (!TiendaNubeApi.inicializar()) {
             throw new RuntimeException("No se pudieron inicializar las credenciales de Tienda Nube.");
         }
+        if (TIEMPO_MAXIMO != null) {
+            RunDeadline.iniciar(TIEMPO_MAXIMO);
+        }
 
         // Pasos 2-5: Obtener ventas de todas las fuentes en paralelo
         AppLogger.info("PICKIT - Pasos 2-5: Obteniendo ventas de todas las fuentes...");
 
+        // Cada fuente devuelve su resultado; las listas compartidas se llenan solo con lo que terminó a tiempo
         var futureMLPrint = executor.submit(() -> {
             AppLogger.info("PICKIT - Paso 2: Obteniendo ventas ML ready_to_print...");
-            MLOrderResult result = MercadoLibreAPI.obtenerVentasReadyToPrint(userId);
-            todasLasVentas.addAll(result.ventas());
-            todasLasOrdenesML.addAll(result.ordenes());
-            return result.ventas().size();
+            return MercadoLibreAPI.obtenerVentasReadyToPrint(userId);
         });
 
         var futureMLAgreement = executor.submit(() -> {
             AppLogger.info("PICKIT - Paso 3: Obteniendo ventas ML acuerdo con el vendedor...");
-            MLOrderResult result = MercadoLibreAPI.obtenerVentasSellerAgreement(userId);
-            todasLasVentas.addAll(result.ventas());
-            todasLasOrdenesML.addAll(result.ordenes());
-            return result.ventas().size();
+            return MercadoLibreAPI.obtenerVentasSellerAgreement(userId);
         });
 
-        var futureNube = executor.submit(() -> {
-            AppLogger.info("PICKIT - Paso 4: Obteniendo ventas KT HOGAR (Tienda Nube)...");
-            List<Venta> ventas = TiendaNubeApi.obtenerVentasHogar();
-            todasLasVentas.addAll(ventas);
-            return ventas.size();
-        });
-
-        var futureGastro = executor.submit(() -> {
-            AppLogger.info("PICKIT - Paso 5: Obteniendo ventas KT GASTRO (Tienda Nube)...");
-            List<Venta> ventas = TiendaNubeApi.obtenerVentasGastro();
-            todasLasVentas.addAll(ventas);
-            return ventas.size();
-        });
+        // Todas las tiendas de Tienda Nube a la vez, cada una con su rate limiter
+        AppLogger.info("PICKIT - Pasos 4-5: Obteniendo ventas de Tienda Nube (" + TiendaNubeApi.cantidadTiendas() + " tiendas)...");
+        Map<String, CompletableFuture<List<Venta>>> futuresNube = TiendaNubeApi.obtenerVentasPorTienda();
+
+        // Esperar a que terminen todos, sin pasar el deadline de la corrida
+        final MLOrderResult sinOrdenes = new MLOrderResult(List.of(), List.of());
+        MLOrderResult resultMLPrint = esperar(futureMLPrint, "ML ready_to_print", sinOrdenes);
+        MLOrderResult resultMLAgreement = esperar(futureMLAgreement, "ML acuerdo", sinOrdenes);
+        Map<String, List<Venta>> ventasNube = new LinkedHashMap<>();
+        for (Map.Entry<String, CompletableFuture<List<Venta>>> tienda : futuresNube.entrySet()) {
+            ventasNube.put(tienda.getKey(), esperar(tienda.getValue(), tienda.getKey(), List.of()));
+        }
 
-        // Esperar a que terminen todos
-        int countMLPrint = futureMLPrint.get();
-        int countMLAgreement = futureMLAgreement.get();
-        int countNube = futureNube.get();
-        int countGastro = futureGastro.get();
+        todasLasVentas.addAll(resultMLPrint.ventas());
+        todasLasOrdenesML.addAll(resultMLPrint.ordenes());
+        todasLasVentas.addAll(resultMLAgreement.ventas());
+        todasLasOrdenesML.addAll(resultMLAgreement.ordenes());
+        ventasNube.values().forEach(todasLasVentas::addAll);
 
         // Paso 6: Consolidar ventas
         AppLogger.info("PICKIT - Paso 6: Consolidando ventas...");
-        AppLogger.info(String.format("ML ready_to_print: %d | ML acuerdo: %d | KT HOGAR: %d | KT GASTRO: %d | Total: %d",
-                countMLPrint, countMLAgreement, countNube, countGastro, todasLasVentas.size()));
+        StringBuilder conteo = new StringBuilder(String.format("ML ready_to_print: %d | ML acuerdo: %d",
+                resultMLPrint.ventas().size(), resultMLAgreement.ventas().size()));
+        ventasNube.forEach((tienda, ventas) -> conteo.append(" | ").append(tienda).append(": ").append(ventas.size()));
+        AppLogger.info(conteo.append(" | Total: ").append(todasLasVentas.size()).toString());
 
         // Agregar productos manuales
         if (productosManuales != null && !productosManuales.isEmpty()) {
@@ -267,6 +293,9 @@ public class PickitGenerator {
         }
 
         List<CarrosOrden> carrosOrdenes = new ArrayList<>();
+        // Envíos para las etiquetas: primero los de los carros en orden de letra, después el resto por fecha
+        List<Long> enviosCarros = new ArrayList<>();
+        List<Long> enviosSinCarro = new ArrayList<>();
         int carroIndex = 0;
         for (Map.Entry<Long, List<OrdenML>> entry : ordenesPorVenta.entrySet()) {
             List<OrdenML> ordenesGrupo = entry.getValue();
@@ -307,6 +336,10 @@ public class PickitGenerator {
                 }
             }
             // Solo agregar si tiene 2+ SKUs distintos
+            List<Long> envios = skusDistintos.size() >= 2 ? enviosCarros : enviosSinCarro;
+            for (OrdenML orden : ordenesGrupo) {
+                if (orden.getShipmentId() != null) envios.add(orden.getShipmentId());
+            }
             if (skusDistintos.size() >= 2) {
                 carrosOrdenes.add(new CarrosOrden(numeroVenta, fechaCreacion, letra, carrosItems));
             } else {
@@ -317,7 +350,22 @@ public class PickitGenerator {
 
         // Paso 12: Generar Excel
         AppLogger.info("PICKIT - Paso 12: Generando Excel Pickit...");
-        File resultado = PickitExcelWriter.generar(pickitItems, carrosOrdenes);
+        File resultado = PickitExcelWriter.generar(pickitItems, carrosOrdenes, RunDeadline.isDegradado());
+
+        // Paso 13 (opcional): Etiquetas de envío de ready_to_print
+        if (DESCARGAR_ETIQUETAS) {
+            descargarEtiquetas(resultado, enviosCarros, enviosSinCarro);
+        }
+
+        // Paso 14 (opcional): Marcar como impresas las órdenes de acuerdo con el vendedor
+        if (MARCAR_IMPRESAS && !resultMLAgreement.ordenes().isEmpty()) {
+            AppLogger.info("PICKIT - Paso 14: Marcando como impresas " + resultMLAgreement.ordenes().size() + " órdenes ML acuerdo...");
+            try {
+                MercadoLibreAPI.marcarImpresas(resultMLAgreement.ordenes());
+            } catch (Exception e) {
+                AppLogger.warn("PICKIT - No se pudieron marcar las órdenes como impresas: " + e.getMessage());
+            }
+        }
 
         // Resumen de problemas
         if (skusNoEncontrados > 0 || skusStockInsuficiente > 0 || skusConError > 0) {
@@ -331,11 +379,80 @@ public class PickitGenerator {
             AppLogger.warn("PICKIT - ==============================");
         }
 
+        // Hosts que fallaron durante la corrida: sus datos pueden estar incompletos
+        List<String> circuitos = CircuitBreaker.reporte();
+        if (!circuitos.isEmpty()) {
+            AppLogger.warn("PICKIT - Hosts con fallas (circuit breaker), datos posiblemente incompletos:");
+            for (String linea : circuitos) {
+                AppLogger.warn("PICKIT -   " + linea);
+            }
+        }
+
+        registrarMetricas(resultado);
+
+        if (RunDeadline.isDegradado()) {
+            AppLogger.warn("PICKIT - Resultado DEGRADADO: se omitieron pasos para cumplir el tiempo máximo de "
+                    + TIEMPO_MAXIMO.toSeconds() + " segundos (" + RunDeadline.getDegradaciones().size() + " omisiones).");
+        }
+
         AppLogger.success("PICKIT - Proceso completado. " + pickitItems.size() + " items generados. Archivo: " + resultado.getAbsolutePath());
 
         return resultado;
     }
 
+    /**
+     * Descarga las etiquetas de los envíos en Etiquetas/ETIQUETAS_{fecha}.zpl junto a la carpeta Excel,
+     * en el orden de las letras de CARROS. Un error acá no invalida el pickit ya generado.
+     */
+    private static void descargarEtiquetas(File pickit, List<Long> enviosCarros, List<Long> enviosSinCarro) {
+        List<Long> envios = new ArrayList<>(enviosCarros);
+        envios.addAll(enviosSinCarro);
+        if (envios.isEmpty()) {
+            AppLogger.info("PICKIT - Paso 13: No hay envíos ready_to_print para descargar etiquetas.");
+            return;
+        }
+        AppLogger.info("PICKIT - Paso 13: Descargando etiquetas de " + envios.size() + " envíos...");
+        String sufijo = pickit.getName().replace("PICKIT_", "").replace(".xlsx", "");
+        File etiquetas = pickit.getParentFile().toPath().resolveSibling("Etiquetas")
+                .resolve("ETIQUETAS_" + sufijo + ".zpl").toFile();
+        try {
+            MercadoLibreAPI.descargarEtiquetas(envios, etiquetas);
+        } catch (Exception e) {
+            AppLogger.warn("PICKIT - No se pudieron guardar las etiquetas: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Loguea el resumen de métricas HTTP de la corrida y las guarda en Metricas/METRICAS_{fecha}.json
+     * junto a la carpeta Excel, con el mismo sufijo de fecha que el pickit.
+     */
+    private static void registrarMetricas(File pickit) {
+        AppLogger.info("PICKIT - ========== METRICAS HTTP ==========");
+        for (String linea : HttpMetrics.resumen()) {
+            AppLogger.info("PICKIT -   " + linea);
+        }
+        String sufijo = pickit.getName().replace("PICKIT_", "").replace(".xlsx", "");
+        File metricas = pickit.getParentFile().toPath().resolveSibling("Metricas")
+                .resolve("METRICAS_" + sufijo + ".json").toFile();
+        HttpMetrics.escribirJson(metricas);
+        AppLogger.info("PICKIT - Métricas guardadas en " + metricas.getAbsolutePath());
+    }
+
+    /**
+     * Espera el resultado de una fuente hasta el deadline de la corrida.
+     * Si no termina a tiempo se cancela, se marca la corrida como degradada y se sigue sin sus ventas.
+     */
+    private static <T> T esperar(Future<T> future, String fuente, T sinResultado) throws Exception {
+        try {
+            long restanteMs = RunDeadline.restanteMs();
+            return restanteMs == Long.MAX_VALUE ? future.get() : future.get(restanteMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            RunDeadline.marcarDegradado(fuente + " no terminó dentro del tiempo máximo, se continúa sin esas ventas.");
+            return sinResultado;
+        }
+    }
+
     /**
      * Genera letra de carro estilo Excel: A-Z, AA-AZ, BA-BZ, ...
      */
@@ -0,0 +1,142 @@
+package ar.com.leo.ml;
+
+import ar.com.leo.AppLogger;
+import ar.com.leo.EstadoPersistente;
+import ar.com.leo.ml.MLOrdersParser.OrdenResumen;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static ar.com.leo.HttpRetryHandler.BASE_ESTADO_DIR;
+
+/**
+ * Órdenes ML con envío en ready_to_print, mantenidas al día por el receptor de notificaciones
+ * (ver {@link NotificacionesML}). Se llena con un pedido completo de orders/search y después cada
+ * notificación de orders_v2 / shipments agrega o quita las órdenes afectadas.
+ * Las notificaciones aplicadas mientras se pagina un pedido completo no se pierden al reemplazar:
+ * ganan sobre lo leído salvo que la página traiga una versión más nueva (date_last_updated).
+ * Si una notificación no se pudo refrescar, la caché deja de considerarse al día hasta el próximo
+ * pedido completo. Sin receptor activo se usa solo como copia del último pedido completo.
+ */
+public class CacheReadyToPrint {
+
+    private static final Path ARCHIVO = BASE_ESTADO_DIR.resolve("ml_ready_to_print.json");
+    private static final Duration SYNC_COMPLETA_CADA = Duration.ofHours(6);
+
+    public record Estado(long ultimaSyncCompletaMs, Map<Long, OrdenResumen> ordenes) {
+    }
+
+    /**
+     * Cambio aplicado por una notificación: la orden refrescada y si quedó en la caché o salió de ella.
+     */
+    private record Notificada(long aplicadaMs, OrdenResumen orden, boolean presente) {
+    }
+
+    private static CacheReadyToPrint instancia;
+
+    private long ultimaSyncCompletaMs;
+    private final Map<Long, OrdenResumen> ordenes = new HashMap<>();
+    private final Map<Long, Notificada> notificadas = new HashMap<>();
+    private long ultimoFalloNotificacionMs;
+
+    public static synchronized CacheReadyToPrint instancia() {
+        if (instancia == null) {
+            instancia = new CacheReadyToPrint();
+            try {
+                Estado estado = EstadoPersistente.leer(ARCHIVO, Estado.class);
+                if (estado != null) {
+                    instancia.ultimaSyncCompletaMs = estado.ultimaSyncCompletaMs();
+                    if (estado.ordenes() != null) instancia.ordenes.putAll(estado.ordenes());
+                }
+            } catch (Exception e) {
+                AppLogger.warn("ML - Caché ready_to_print ilegible, se descarta: " + e.getMessage());
+            }
+        }
+        return instancia;
+    }
+
+    /**
+     * Indica si la caché se puede usar sin consultar a ML: se llenó completa después de que empezaron
+     * a llegar notificaciones, ninguna falló desde entonces y no pasó el tiempo máximo entre
+     * sincronizaciones completas.
+     */
+    public synchronized boolean actualizadaPorNotificaciones(long notificacionesDesdeMs, long ahoraMs) {
+        return notificacionesDesdeMs > 0 && ultimaSyncCompletaMs >= notificacionesDesdeMs
+                && ultimaSyncCompletaMs > ultimoFalloNotificacionMs
+                && ahoraMs - ultimaSyncCompletaMs < SYNC_COMPLETA_CADA.toMillis();
+    }
+
+    public synchronized void reemplazar(List<OrdenResumen> todas, long inicioSyncMs, boolean completa) {
+        ordenes.clear();
+        for (OrdenResumen orden : todas) {
+            ordenes.put(orden.id(), orden);
+        }
+        // Lo notificado durante el pedido es posterior a lo leído, salvo que la página traiga algo más nuevo
+        for (Notificada notificada : notificadas.values()) {
+            if (notificada.aplicadaMs() < inicioSyncMs) continue;
+            long id = notificada.orden().id();
+            OrdenResumen leida = ordenes.get(id);
+            if (leida != null && MLOrdersParser.masVieja(notificada.orden(), leida)) continue;
+            if (notificada.presente()) {
+                ordenes.put(id, notificada.orden());
+            } else {
+                ordenes.remove(id);
+            }
+        }
+        notificadas.values().removeIf(notificada -> notificada.aplicadaMs() < inicioSyncMs);
+        // Un pedido incompleto no habilita a usar la caché como fuente
+        ultimaSyncCompletaMs = completa ? inicioSyncMs : 0;
+    }
+
+    public synchronized void actualizar(OrdenResumen orden) {
+        OrdenResumen actual = ordenes.get(orden.id());
+        if (actual != null && MLOrdersParser.masVieja(orden, actual)) return;
+        ordenes.put(orden.id(), orden);
+        notificadas.put(orden.id(), new Notificada(System.currentTimeMillis(), orden, true));
+    }
+
+    public synchronized void quitar(OrdenResumen orden) {
+        ordenes.remove(orden.id());
+        notificadas.put(orden.id(), new Notificada(System.currentTimeMillis(), orden, false));
+    }
+
+    /**
+     * Una notificación no se pudo refrescar: hasta el próximo pedido completo la caché puede estar atrasada.
+     */
+    public synchronized void marcarFalloNotificacion() {
+        ultimoFalloNotificacionMs = System.currentTimeMillis();
+    }
+
+    public synchronized List<Long> ordenesDelEnvio(long shipmentId) {
+        List<Long> ids = new ArrayList<>();
+        for (OrdenResumen orden : ordenes.values()) {
+            if (orden.shipmentId() != null && orden.shipmentId() == shipmentId) {
+                ids.add(orden.id());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Órdenes en orden de creación, igual que sort=date_asc.
+     */
+    public synchronized List<OrdenResumen> ordenes() {
+        List<OrdenResumen> lista = new ArrayList<>(ordenes.values());
+        lista.sort(Comparator.comparing(OrdenResumen::dateCreated, Comparator.nullsLast(Comparator.naturalOrder()))
+                .thenComparingLong(OrdenResumen::id));
+        return lista;
+    }
+
+    public synchronized void guardar() {
+        try {
+            EstadoPersistente.guardarAtomico(ARCHIVO, new Estado(ultimaSyncCompletaMs, ordenes));
+        } catch (Exception e) {
+            AppLogger.warn("ML - No se pudo guardar la caché ready_to_print: " + e.getMessage());
+        }
+    }
+}
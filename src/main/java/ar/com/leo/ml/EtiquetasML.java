@@ -0,0 +1,150 @@
+package ar.com.leo.ml;
+
+import ar.com.leo.AppLogger;
+import ar.com.leo.EstadoPersistente;
+import ar.com.leo.HttpClientFactory;
+import ar.com.leo.HttpRetryHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Descarga en lote de etiquetas de envío de MercadoLibre en formato ZPL (impresoras térmicas).
+ * /shipment_labels acepta hasta {@code MAX_ENVIOS_POR_LOTE} envíos por request y con response_type=zpl2
+ * devuelve un zip con la etiqueta en texto; los lotes se piden en paralelo (con tope en vuelo, al ritmo del
+ * rate limiter del handler) y se concatenan en un único archivo respetando el orden recibido.
+ * Si falta algún lote el archivo se guarda con el sufijo {@code _INCOMPLETO}; si no se pudo bajar ninguno
+ * no se escribe nada y se informa el error.
+ */
+public class EtiquetasML {
+
+    public static final int MAX_ENVIOS_POR_LOTE = 50;
+    private static final int MAX_LOTES_EN_VUELO = 4;
+
+    /**
+     * @param retryHandler handler por el que salen los requests (el de MercadoLibreAPI en producción)
+     * @param apiBase      URL base de la API, sin barra final
+     * @param accessToken  token vigente al momento de cada intento
+     * @param shipmentIds  envíos en el orden en que se quieren las etiquetas (los repetidos se ignoran)
+     * @param destino      archivo .zpl de salida
+     * @return cantidad de envíos cuyo lote se descargó
+     * @throws IOException si no se pudo descargar ningún lote o escribir el archivo
+     */
+    public static int descargar(HttpRetryHandler retryHandler, String apiBase, Supplier<String> accessToken,
+                                List<Long> shipmentIds, File destino) throws IOException {
+        List<Long> ids = new ArrayList<>(new LinkedHashSet<>(shipmentIds));
+        List<List<Long>> lotes = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i += MAX_ENVIOS_POR_LOTE) {
+            lotes.add(ids.subList(i, Math.min(i + MAX_ENVIOS_POR_LOTE, ids.size())));
+        }
+
+        Semaphore enVuelo = new Semaphore(MAX_LOTES_EN_VUELO);
+        List<CompletableFuture<byte[]>> descargas = new ArrayList<>();
+        for (List<Long> lote : lotes) {
+            descargas.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    enVuelo.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+                try {
+                    return descargarLote(retryHandler, apiBase, accessToken, lote);
+                } finally {
+                    enVuelo.release();
+                }
+            }, HttpClientFactory.getExecutor()));
+        }
+
+        // Unir en el orden de los lotes, no en el que terminaron
+        ByteArrayOutputStream zpl = new ByteArrayOutputStream();
+        int descargados = 0;
+        List<Long> faltantes = new ArrayList<>();
+        for (int i = 0; i < lotes.size(); i++) {
+            byte[] etiquetas = descargas.get(i).join();
+            if (etiquetas == null) {
+                faltantes.addAll(lotes.get(i));
+                continue;
+            }
+            zpl.write(etiquetas);
+            if (etiquetas.length > 0 && etiquetas[etiquetas.length - 1] != '\n') zpl.write('\n');
+            descargados += lotes.get(i).size();
+        }
+        if (descargados == 0 && !ids.isEmpty()) {
+            throw new IOException("no se pudo descargar ninguna de las " + ids.size() + " etiquetas");
+        }
+
+        Path archivo = destino.toPath();
+        if (!faltantes.isEmpty()) {
+            // Que no se confunda con el lote completo al imprimir
+            String nombre = archivo.getFileName().toString();
+            int punto = nombre.lastIndexOf('.');
+            nombre = punto >= 0 ? nombre.substring(0, punto) + "_INCOMPLETO" + nombre.substring(punto) : nombre + "_INCOMPLETO";
+            archivo = archivo.resolveSibling(nombre);
+            AppLogger.warn("ML - Etiquetas INCOMPLETAS: faltan " + faltantes.size() + " envíos: " + faltantes);
+        }
+        EstadoPersistente.escribirAtomico(archivo, zpl.toByteArray());
+        AppLogger.info("ML - Etiquetas: " + descargados + "/" + ids.size() + " envíos en " + lotes.size()
+                + " lotes → " + archivo);
+        return descargados;
+    }
+
+    /**
+     * @return el ZPL del lote, o null si no se pudo descargar (ya logueado)
+     */
+    private static byte[] descargarLote(HttpRetryHandler retryHandler, String apiBase, Supplier<String> accessToken,
+                                        List<Long> lote) {
+        String ids = lote.stream().map(String::valueOf).collect(Collectors.joining(","));
+        HttpResponse<byte[]> response = retryHandler.sendWithRetry(() -> HttpRequest.newBuilder()
+                .uri(URI.create(apiBase + "/shipment_labels?shipment_ids=" + ids + "&response_type=zpl2"))
+                .header("Authorization", "Bearer " + accessToken.get())
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofByteArray());
+
+        if (response == null || response.statusCode() != 200) {
+            AppLogger.warn("ML - Error al descargar etiquetas de los envíos " + ids + ": "
+                    + HttpRetryHandler.cuerpoComoTexto(response));
+            return null;
+        }
+        try {
+            return extraerZpl(response.body());
+        } catch (IOException e) {
+            AppLogger.warn("ML - Etiquetas ilegibles para los envíos " + ids + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * ML devuelve un zip con el ZPL en un .txt; si la respuesta no es un zip se toma como ZPL directo.
+     */
+    private static byte[] extraerZpl(byte[] cuerpo) throws IOException {
+        if (cuerpo.length < 2 || cuerpo[0] != 'P' || cuerpo[1] != 'K') {
+            return cuerpo;
+        }
+        ByteArrayOutputStream zpl = new ByteArrayOutputStream();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(cuerpo))) {
+            ZipEntry entrada;
+            while ((entrada = zip.getNextEntry()) != null) {
+                if (!entrada.isDirectory() && entrada.getName().toLowerCase().endsWith(".txt")) {
+                    zip.transferTo(zpl);
+                }
+            }
+        }
+        return zpl.toByteArray();
+    }
+}
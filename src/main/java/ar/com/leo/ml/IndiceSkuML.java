@@ -0,0 +1,100 @@
+package ar.com.leo.ml;
+
+import ar.com.leo.AppLogger;
+import ar.com.leo.EstadoPersistente;
+import tools.jackson.core.type.TypeReference;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static ar.com.leo.HttpRetryHandler.BASE_ESTADO_DIR;
+
+/**
+ * Índice persistente SKU → item_id → user_product_id de MercadoLibre.
+ * Estas relaciones casi nunca cambian, así que con el índice una consulta de stock es un único
+ * request a /user-products/{id}/stock en lugar de búsqueda por SKU + item + stock.
+ * Una entrada con más de {@code REFRESCO} se sigue usando pero se refresca en segundo plano;
+ * pasado el {@code TTL} ya no se usa. Un 404 del item o del user_product invalida la entrada.
+ */
+public class IndiceSkuML {
+
+    private static final Path ARCHIVO = BASE_ESTADO_DIR.resolve("ml_indice_sku.json");
+    private static final Duration REFRESCO = Duration.ofDays(1);
+    private static final Duration TTL = Duration.ofDays(7);
+
+    /**
+     * @param userProductId null si el item no tiene user_product (se usa available_quantity del item)
+     */
+    public record Mapeo(String itemId, String userProductId, long actualizado) {
+
+        boolean vigente() {
+            return System.currentTimeMillis() - actualizado < TTL.toMillis();
+        }
+
+        boolean paraRefrescar() {
+            return System.currentTimeMillis() - actualizado >= REFRESCO.toMillis();
+        }
+    }
+
+    private static final ConcurrentHashMap<String, Mapeo> mapeos = new ConcurrentHashMap<>();
+    private static volatile boolean cargado;
+
+    /**
+     * @return el mapeo vigente del SKU, o null si no hay o está vencido
+     */
+    public static Mapeo buscar(String sku) {
+        cargar();
+        Mapeo mapeo = mapeos.get(sku);
+        return mapeo != null && mapeo.vigente() ? mapeo : null;
+    }
+
+    public static Mapeo guardarMapeo(String sku, String itemId, String userProductId) {
+        cargar();
+        Mapeo mapeo = new Mapeo(itemId, userProductId, System.currentTimeMillis());
+        mapeos.put(sku, mapeo);
+        return mapeo;
+    }
+
+    public static void invalidar(String sku) {
+        cargar();
+        mapeos.remove(sku);
+    }
+
+    public static void invalidarItem(String itemId) {
+        cargar();
+        mapeos.values().removeIf(mapeo -> itemId.equals(mapeo.itemId()));
+    }
+
+    public static void invalidarUserProduct(String userProductId) {
+        cargar();
+        mapeos.values().removeIf(mapeo -> userProductId.equals(mapeo.userProductId()));
+    }
+
+    public static synchronized void guardar() {
+        if (!cargado) return;
+        mapeos.values().removeIf(mapeo -> !mapeo.vigente());
+        try {
+            EstadoPersistente.guardarAtomico(ARCHIVO, new HashMap<>(mapeos));
+        } catch (Exception e) {
+            AppLogger.warn("ML - No se pudo guardar el índice de SKUs: " + e.getMessage());
+        }
+    }
+
+    private static void cargar() {
+        if (cargado) return;
+        synchronized (IndiceSkuML.class) {
+            if (cargado) return;
+            try {
+                Map<String, Mapeo> guardados = EstadoPersistente.leer(ARCHIVO, new TypeReference<Map<String, Mapeo>>() {
+                });
+                if (guardados != null) mapeos.putAll(guardados);
+            } catch (Exception e) {
+                AppLogger.warn("ML - Índice de SKUs ilegible, se reconstruye: " + e.getMessage());
+            }
+            cargado = true;
+        }
+    }
+}
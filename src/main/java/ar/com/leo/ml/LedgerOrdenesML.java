@@ -0,0 +1,285 @@
+package ar.com.leo.ml;
+
+import ar.com.leo.AppLogger;
+import ar.com.leo.EstadoPersistente;
+import ar.com.leo.ml.MLOrdersParser.OrdenResumen;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.LongPredicate;
+
+import static ar.com.leo.HttpRetryHandler.BASE_ESTADO_DIR;
+
+/**
+ * Copia local de las órdenes ML sin envío (acuerdo con el vendedor) de los últimos 7 días,
+ * indexada por order id, para sincronizar de forma incremental.
+ * Una sincronización completa trae todas las órdenes pagas de la ventana; las siguientes piden solo las
+ * órdenes modificadas desde la última sincronización (order.date_last_updated.from) y las mezclan acá,
+ * así que una orden que pasó a cancelada, entregada o fulfilled se actualiza y deja de ser candidata.
+ * Cada {@code SYNC_COMPLETA_CADA} se vuelve a hacer una completa para corregir cualquier desvío.
+ * <p>
+ * La sincronización completa se parte en ventanas de un día de date_created que se paginan en paralelo.
+ * Un día pasado en el que todas las órdenes ya están entregadas, fulfilled, sin pagar o con nota queda
+ * cerrado y las completas siguientes no lo vuelven a pedir: ahí no pueden aparecer órdenes nuevas y los
+ * cambios de sus órdenes llegan igual por la sincronización incremental.
+ * <p>
+ * Al mezclar, una orden refrescada por notificación durante la sincronización no se pisa con la versión
+ * leída de orders/search salvo que esta sea más nueva (date_last_updated).
+ */
+public class LedgerOrdenesML {
+
+    private static final Path ARCHIVO = BASE_ESTADO_DIR.resolve("ml_ledger_acuerdo.json");
+    private static final Duration VENTANA = Duration.ofDays(7);
+    private static final Duration SYNC_COMPLETA_CADA = Duration.ofHours(6);
+    // Margen por diferencias de reloj con ML y órdenes que se actualizan mientras se pagina
+    private static final Duration MARGEN_DELTA = Duration.ofMinutes(5);
+    private static final DateTimeFormatter FORMATO_ML = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+
+    public record Estado(long ultimaSyncMs, long ultimaSyncCompletaMs, Map<Long, OrdenResumen> ordenes,
+                         Set<LocalDate> ventanasCerradas) {
+    }
+
+    /**
+     * Ventana de date_created para la sincronización completa, con las fechas ya en formato ML.
+     */
+    public record Ventana(LocalDate dia, String desde, String hasta) {
+    }
+
+    private static LedgerOrdenesML instancia;
+
+    private long ultimaSyncMs;
+    private long ultimaSyncCompletaMs;
+    private final Map<Long, OrdenResumen> ordenes = new HashMap<>();
+    private final Set<LocalDate> ventanasCerradas = new TreeSet<>();
+    // order id → momento en que se aplicó su última notificación
+    private final Map<Long, Long> notificadas = new HashMap<>();
+    private long ultimoFalloNotificacionMs;
+
+    /**
+     * Ledger compartido por la sincronización del pickit y el receptor de notificaciones.
+     */
+    public static synchronized LedgerOrdenesML instancia() {
+        if (instancia == null) {
+            instancia = cargar();
+        }
+        return instancia;
+    }
+
+    private static LedgerOrdenesML cargar() {
+        LedgerOrdenesML ledger = new LedgerOrdenesML();
+        try {
+            Estado estado = EstadoPersistente.leer(ARCHIVO, Estado.class);
+            if (estado != null) {
+                ledger.ultimaSyncMs = estado.ultimaSyncMs();
+                ledger.ultimaSyncCompletaMs = estado.ultimaSyncCompletaMs();
+                if (estado.ordenes() != null) ledger.ordenes.putAll(estado.ordenes());
+                if (estado.ventanasCerradas() != null) ledger.ventanasCerradas.addAll(estado.ventanasCerradas());
+            }
+        } catch (Exception e) {
+            AppLogger.warn("ML - Ledger de órdenes ilegible, se hace una sincronización completa: " + e.getMessage());
+        }
+        return ledger;
+    }
+
+    /**
+     * Fecha desde la que pedir órdenes para una sincronización completa (inicio de la ventana de 7 días,
+     * redondeada a la hora como la query original).
+     */
+    public static OffsetDateTime inicioVentana() {
+        return OffsetDateTime.now().minus(VENTANA).truncatedTo(ChronoUnit.HOURS);
+    }
+
+    /**
+     * Ventanas de un día (en la zona local) que cubren los últimos 7 días, de la más vieja a hoy.
+     * La primera arranca en {@link #inicioVentana()}; la de hoy nunca se considera cerrada.
+     */
+    public static List<Ventana> ventanas() {
+        OffsetDateTime inicio = inicioVentana();
+        ZoneId zona = ZoneId.systemDefault();
+        List<Ventana> ventanas = new ArrayList<>();
+        for (LocalDate dia = inicio.toLocalDate(); !dia.isAfter(LocalDate.now()); dia = dia.plusDays(1)) {
+            OffsetDateTime desde = dia.atStartOfDay(zona).toOffsetDateTime();
+            if (desde.isBefore(inicio)) desde = inicio;
+            OffsetDateTime hasta = dia.plusDays(1).atStartOfDay(zona).toOffsetDateTime().minus(1, ChronoUnit.MILLIS);
+            ventanas.add(new Ventana(dia, desde.format(FORMATO_ML), hasta.format(FORMATO_ML)));
+        }
+        return ventanas;
+    }
+
+    public synchronized boolean tieneSyncPrevia() {
+        return ultimaSyncMs > 0;
+    }
+
+    public synchronized boolean requiereSyncCompleta(long ahoraMs) {
+        return ultimaSyncMs == 0 || ahoraMs - ultimaSyncCompletaMs >= SYNC_COMPLETA_CADA.toMillis();
+    }
+
+    /**
+     * Valor de order.date_last_updated.from para la sincronización incremental.
+     */
+    public synchronized String desdeDelta() {
+        Instant desde = Instant.ofEpochMilli(ultimaSyncMs).minus(MARGEN_DELTA);
+        return desde.atZone(ZoneId.systemDefault()).format(FORMATO_ML);
+    }
+
+    public synchronized boolean ventanaCerrada(LocalDate dia) {
+        return ventanasCerradas.contains(dia);
+    }
+
+    /**
+     * Resultado de una sincronización completa por ventanas: las órdenes de los días leídos se reemplazan
+     * por las obtenidas y las de los días cerrados se conservan. Si no se pudieron leer todas las páginas
+     * se mezcla lo obtenido sin dar la sincronización por hecha, para que la próxima corrida la repita.
+     */
+    public synchronized void reemplazarVentanas(List<OrdenResumen> leidas, Set<LocalDate> diasLeidos,
+                                                long inicioSyncMs, boolean completa) {
+        if (completa) {
+            ordenes.values().removeIf(orden -> {
+                OffsetDateTime creada = MLOrdersParser.fechaCreacion(orden);
+                return creada != null && diasLeidos.contains(dia(creada)) && !notificadaDesde(orden.id(), inicioSyncMs);
+            });
+            ultimaSyncMs = inicioSyncMs;
+            ultimaSyncCompletaMs = inicioSyncMs;
+        }
+        for (OrdenResumen orden : leidas) {
+            mezclar(orden, inicioSyncMs);
+        }
+        notificadas.values().removeIf(aplicadaMs -> aplicadaMs < inicioSyncMs);
+    }
+
+    public synchronized void aplicarDelta(List<OrdenResumen> modificadas, long inicioSyncMs, boolean completa) {
+        for (OrdenResumen orden : modificadas) {
+            mezclar(orden, inicioSyncMs);
+        }
+        if (completa) {
+            ultimaSyncMs = inicioSyncMs;
+        }
+    }
+
+    /**
+     * Guarda una orden leída de orders/search salvo que la del ledger sea más nueva, o que se haya
+     * refrescado por notificación después de empezar la sincronización y la leída no sea posterior.
+     */
+    private void mezclar(OrdenResumen leida, long inicioSyncMs) {
+        OrdenResumen actual = ordenes.get(leida.id());
+        if (actual != null) {
+            if (MLOrdersParser.masVieja(leida, actual)) return;
+            if (notificadaDesde(leida.id(), inicioSyncMs) && !MLOrdersParser.masVieja(actual, leida)) return;
+        }
+        ordenes.put(leida.id(), leida);
+    }
+
+    private boolean notificadaDesde(long orderId, long desdeMs) {
+        Long aplicadaMs = notificadas.get(orderId);
+        return aplicadaMs != null && aplicadaMs >= desdeMs;
+    }
+
+    /**
+     * Órdenes pagas de la ventana que no están entregadas ni fulfilled, en orden de creación
+     * (igual que sort=date_asc). Descarta del ledger las que ya quedaron fuera de la ventana.
+     */
+    public synchronized List<OrdenResumen> candidatas() {
+        OffsetDateTime desde = inicioVentana();
+        ordenes.values().removeIf(orden -> {
+            OffsetDateTime creada = MLOrdersParser.fechaCreacion(orden);
+            return creada != null && creada.isBefore(desde);
+        });
+
+        List<OrdenResumen> candidatas = new ArrayList<>();
+        for (OrdenResumen orden : ordenes.values()) {
+            if (pendienteDeImprimir(orden)) candidatas.add(orden);
+        }
+        candidatas.sort(Comparator
+                .comparing(MLOrdersParser::fechaCreacion, Comparator.nullsLast(Comparator.naturalOrder()))
+                .thenComparingLong(OrdenResumen::id));
+        return candidatas;
+    }
+
+    /**
+     * Paga, sin entregar y sin fulfilled: todavía puede entrar al pickit si no tiene nota.
+     */
+    static boolean pendienteDeImprimir(OrdenResumen orden) {
+        return "paid".equals(orden.status()) && !orden.entregada() && !orden.fulfilled();
+    }
+
+    /**
+     * Recalcula qué días pasados quedaron cerrados: ninguna de sus órdenes sigue pendiente de imprimir
+     * (pagas, sin entregar, sin fulfilled y sin nota). Se llama después de resolver las notas.
+     *
+     * @param conNota indica si una orden ya tiene nota
+     */
+    public synchronized void actualizarVentanasCerradas(LongPredicate conNota) {
+        Set<LocalDate> abiertas = new TreeSet<>();
+        for (OrdenResumen orden : ordenes.values()) {
+            OffsetDateTime creada = MLOrdersParser.fechaCreacion(orden);
+            if (creada == null) continue;
+            boolean pendiente = "paid".equals(orden.status()) && !orden.entregada() && !orden.fulfilled()
+                    && !conNota.test(orden.id());
+            if (pendiente) abiertas.add(dia(creada));
+        }
+        ventanasCerradas.clear();
+        LocalDate hoy = LocalDate.now();
+        for (Ventana ventana : ventanas()) {
+            if (ventana.dia().isBefore(hoy) && !abiertas.contains(ventana.dia())) {
+                ventanasCerradas.add(ventana.dia());
+            }
+        }
+    }
+
+    /**
+     * Actualiza una orden a partir de una notificación de ML.
+     */
+    public synchronized void actualizar(OrdenResumen orden) {
+        OrdenResumen actual = ordenes.get(orden.id());
+        if (actual != null && MLOrdersParser.masVieja(orden, actual)) return;
+        ordenes.put(orden.id(), orden);
+        notificadas.put(orden.id(), System.currentTimeMillis());
+    }
+
+    /**
+     * Una notificación no se pudo refrescar: el ledger deja de estar al día hasta la próxima sincronización,
+     * que con el cursor incremental trae ese cambio.
+     */
+    public synchronized void marcarFalloNotificacion() {
+        ultimoFalloNotificacionMs = System.currentTimeMillis();
+    }
+
+    /**
+     * Indica si el ledger está al día sin consultar a ML: hubo una sincronización después de que
+     * empezaron a llegar notificaciones y ninguna falló desde entonces, así que todo cambio posterior
+     * ya se aplicó por notificación.
+     */
+    public synchronized boolean actualizadoPorNotificaciones(long notificacionesDesdeMs) {
+        return notificacionesDesdeMs > 0 && ultimaSyncMs >= notificacionesDesdeMs
+                && ultimaSyncMs > ultimoFalloNotificacionMs;
+    }
+
+    public synchronized int size() {
+        return ordenes.size();
+    }
+
+    public synchronized void guardar() {
+        try {
+            EstadoPersistente.guardarAtomico(ARCHIVO, new Estado(ultimaSyncMs, ultimaSyncCompletaMs, ordenes, ventanasCerradas));
+        } catch (Exception e) {
+            AppLogger.warn("ML - No se pudo guardar el ledger de órdenes: " + e.getMessage());
+        }
+    }
+
+    private static LocalDate dia(OffsetDateTime fecha) {
+        return fecha.atZoneSameInstant(ZoneId.systemDefault()).toLocalDate();
+    }
+}
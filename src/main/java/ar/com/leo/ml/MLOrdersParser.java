@@ -0,0 +1,264 @@
+package ar.com.leo.ml;
+
+import ar.com.leo.AppLogger;
+import ar.com.leo.pickit.model.OrdenML;
+import ar.com.leo.pickit.model.Venta;
+import tools.jackson.core.JsonParser;
+import tools.jackson.core.JsonToken;
+import tools.jackson.databind.ObjectMapper;
+
+import java.io.InputStream;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parser en streaming de las páginas de /orders/search de MercadoLibre.
+ * Lee el cuerpo directamente con un JsonParser y arma registros compactos con los pocos campos
+ * que usa el pickit, sin construir el String completo ni el árbol JsonNode.
+ * Todas las consultas de órdenes ML pasan por acá y arman sus ventas con {@link #aOrdenML}.
+ */
+public class MLOrdersParser {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    public record PaginaOrdenes(List<OrdenResumen> ordenes, int total) {
+    }
+
+    /**
+     * @param shipmentId shipping.id, o null si la orden no tiene envío
+     * @param sinEnvio   tiene el tag "no_shipping" (acuerdo con el vendedor)
+     */
+    public record OrdenResumen(long id, Long packId, Long shipmentId, String status, String dateCreated,
+                               String dateLastUpdated, boolean entregada, boolean sinEnvio, boolean fulfilled,
+                               List<LineaResumen> lineas) {
+    }
+
+    /**
+     * @param sku seller_sku, o seller_custom_field si el primero está vacío
+     */
+    public record LineaResumen(String sku, String title, double quantity) {
+    }
+
+    public static PaginaOrdenes parsearPagina(InputStream body) {
+        List<OrdenResumen> ordenes = new ArrayList<>();
+        int total = 0;
+
+        try (JsonParser p = mapper.createParser(body)) {
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+                return new PaginaOrdenes(ordenes, total);
+            }
+            String campo;
+            while ((campo = p.nextName()) != null) {
+                JsonToken token = p.nextToken();
+                switch (campo) {
+                    case "results" -> {
+                        if (token == JsonToken.START_ARRAY) {
+                            while (p.nextToken() == JsonToken.START_OBJECT) {
+                                ordenes.add(parsearOrden(p));
+                            }
+                        } else {
+                            p.skipChildren();
+                        }
+                    }
+                    case "paging" -> {
+                        if (token == JsonToken.START_OBJECT) {
+                            String campoPaging;
+                            while ((campoPaging = p.nextName()) != null) {
+                                p.nextToken();
+                                if ("total".equals(campoPaging)) {
+                                    total = p.getValueAsInt(0);
+                                } else {
+                                    p.skipChildren();
+                                }
+                            }
+                        } else {
+                            p.skipChildren();
+                        }
+                    }
+                    default -> p.skipChildren();
+                }
+            }
+        }
+
+        return new PaginaOrdenes(ordenes, total);
+    }
+
+    /**
+     * Parsea una orden suelta, como la devuelve /orders/{id}.
+     */
+    public static OrdenResumen parsearOrden(InputStream body) {
+        try (JsonParser p = mapper.createParser(body)) {
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            return parsearOrden(p);
+        }
+    }
+
+    private static OrdenResumen parsearOrden(JsonParser p) {
+        long id = 0;
+        Long packId = null;
+        Long shipmentId = null;
+        String status = "";
+        String dateCreated = "";
+        String dateLastUpdated = "";
+        boolean entregada = false;
+        boolean sinEnvio = false;
+        boolean fulfilled = false;
+        List<LineaResumen> lineas = List.of();
+
+        String campo;
+        while ((campo = p.nextName()) != null) {
+            JsonToken token = p.nextToken();
+            switch (campo) {
+                case "id" -> id = p.getValueAsLong(0);
+                case "pack_id" -> packId = token == JsonToken.VALUE_NULL ? null : p.getValueAsLong(0);
+                case "status" -> status = texto(p);
+                case "date_created" -> dateCreated = texto(p);
+                case "date_last_updated" -> dateLastUpdated = texto(p);
+                case "fulfilled" -> fulfilled = p.getValueAsBoolean(false);
+                case "tags" -> {
+                    if (token == JsonToken.START_ARRAY) {
+                        while (p.nextToken() != JsonToken.END_ARRAY) {
+                            String tag = p.getValueAsString(null);
+                            if ("delivered".equals(tag)) {
+                                entregada = true;
+                            } else if ("no_shipping".equals(tag)) {
+                                sinEnvio = true;
+                            }
+                        }
+                    } else {
+                        p.skipChildren();
+                    }
+                }
+                case "shipping" -> {
+                    if (token == JsonToken.START_OBJECT) {
+                        String campoShipping;
+                        while ((campoShipping = p.nextName()) != null) {
+                            JsonToken tokenShipping = p.nextToken();
+                            if ("id".equals(campoShipping) && tokenShipping != JsonToken.VALUE_NULL) {
+                                shipmentId = p.getValueAsLong(0);
+                            } else {
+                                p.skipChildren();
+                            }
+                        }
+                    } else {
+                        p.skipChildren();
+                    }
+                }
+                case "order_items" -> {
+                    if (token == JsonToken.START_ARRAY) {
+                        lineas = new ArrayList<>();
+                        while (p.nextToken() == JsonToken.START_OBJECT) {
+                            lineas.add(parsearLinea(p));
+                        }
+                    } else {
+                        p.skipChildren();
+                    }
+                }
+                default -> p.skipChildren();
+            }
+        }
+
+        return new OrdenResumen(id, packId, shipmentId, status, dateCreated, dateLastUpdated, entregada, sinEnvio,
+                fulfilled, lineas);
+    }
+
+    private static LineaResumen parsearLinea(JsonParser p) {
+        String sellerSku = "";
+        String sellerCustomField = "";
+        String title = "";
+        double quantity = 0;
+
+        String campo;
+        while ((campo = p.nextName()) != null) {
+            JsonToken token = p.nextToken();
+            if ("quantity".equals(campo)) {
+                quantity = p.getValueAsDouble(0);
+            } else if ("item".equals(campo) && token == JsonToken.START_OBJECT) {
+                String campoItem;
+                while ((campoItem = p.nextName()) != null) {
+                    p.nextToken();
+                    switch (campoItem) {
+                        case "seller_sku" -> sellerSku = texto(p);
+                        case "seller_custom_field" -> sellerCustomField = texto(p);
+                        case "title" -> title = texto(p);
+                        default -> p.skipChildren();
+                    }
+                }
+            } else {
+                p.skipChildren();
+            }
+        }
+
+        String sku = sellerSku.isBlank() ? sellerCustomField : sellerSku;
+        return new LineaResumen(sku, title, quantity);
+    }
+
+    /**
+     * Convierte una orden en la OrdenML del pickit, con una Venta por línea.
+     * Las líneas sin SKU o con cantidad inválida se marcan en el SKU para que salten en el Excel.
+     *
+     * @param origen origen de las ventas ("ML", "ML Acuerdo"), también usado como prefijo de los logs
+     */
+    public static OrdenML aOrdenML(OrdenResumen orden, String origen) {
+        OffsetDateTime fecha = fechaCreacion(orden);
+        if (fecha == null && !orden.dateCreated().isBlank()) {
+            AppLogger.warn(origen + " - Error al parsear fecha de orden " + orden.id() + ": " + orden.dateCreated());
+        }
+        OrdenML ordenML = new OrdenML(orden.id(), orden.packId(), fecha, orden.shipmentId());
+
+        for (LineaResumen linea : orden.lineas()) {
+            String sku = linea.sku();
+            String itemTitle = linea.title();
+            double quantity = linea.quantity();
+
+            if (quantity <= 0) {
+                AppLogger.warn(origen + " - Producto con cantidad inválida en orden " + orden.id() + ": " + sku);
+                String errorSku = sku.isBlank() ? itemTitle : sku;
+                ordenML.getItems().add(new Venta("CANT INVALIDA: " + errorSku, quantity, origen));
+            } else if (sku.isBlank()) {
+                AppLogger.warn(origen + " - Producto sin SKU en orden " + orden.id() + ": " + itemTitle);
+                ordenML.getItems().add(new Venta("SIN SKU: " + itemTitle, quantity, origen));
+            } else {
+                ordenML.getItems().add(new Venta(sku, quantity, origen));
+            }
+        }
+        return ordenML;
+    }
+
+    /**
+     * @return date_created de la orden, o null si no tiene o no se puede parsear
+     */
+    public static OffsetDateTime fechaCreacion(OrdenResumen orden) {
+        return parsearFecha(orden.dateCreated());
+    }
+
+    /**
+     * Indica si {@code a} es una versión anterior a {@code b} de la misma orden según date_last_updated.
+     * Si a alguna de las dos le falta la fecha no se puede decidir y devuelve false.
+     */
+    public static boolean masVieja(OrdenResumen a, OrdenResumen b) {
+        OffsetDateTime fechaA = parsearFecha(a.dateLastUpdated());
+        OffsetDateTime fechaB = parsearFecha(b.dateLastUpdated());
+        return fechaA != null && fechaB != null && fechaA.isBefore(fechaB);
+    }
+
+    private static OffsetDateTime parsearFecha(String fecha) {
+        if (fecha == null || fecha.isBlank()) return null;
+        try {
+            return OffsetDateTime.parse(fecha);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static String texto(JsonParser p) {
+        if (p.currentToken().isScalarValue()) {
+            return p.getValueAsString("");
+        }
+        p.skipChildren();
+        return "";
+    }
+}
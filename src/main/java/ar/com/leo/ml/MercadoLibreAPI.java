@@ -1,7 +1,12 @@
 package ar.com.leo.ml;
 
 import ar.com.leo.AppLogger;
+import ar.com.leo.EstadoPersistente;
+import ar.com.leo.HttpCache;
+import ar.com.leo.HttpClientFactory;
 import ar.com.leo.HttpRetryHandler;
+import ar.com.leo.ml.MLOrdersParser.OrdenResumen;
+import ar.com.leo.ml.MLOrdersParser.PaginaOrdenes;
 import ar.com.leo.ml.model.MLCredentials;
 import ar.com.leo.ml.model.TokensML;
 import ar.com.leo.pickit.model.OrdenML;
@@ -13,6 +18,7 @@ import tools.jackson.databind.ObjectMapper;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.net.http.HttpClient;
@@ -20,9 +26,19 @@ import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.time.OffsetDateTime;
+import java.time.Duration;
+import java.time.LocalDate;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
 import java.util.function.Supplier;
 
 import static ar.com.leo.HttpRetryHandler.BASE_SECRET_DIR;
@@ -32,14 +48,51 @@ public class MercadoLibreAPI {
     public record MLOrderResult(List<Venta> ventas, List<OrdenML> ordenes) {
     }
 
+    private record PaginaPendiente(int offset, CompletableFuture<PaginaOrdenes> pagina) {
+    }
+
+    private record OrdenesLeidas(List<OrdenResumen> ordenes, boolean completas) {
+    }
+
+    private record OrdenPendienteDeNota(OrdenML orden, CompletableFuture<Boolean> tieneNota) {
+    }
+
+    private enum ResultadoNota {ESCRITA, RECHAZADA, EN_DUDA}
+
     private static final Path MERCADOLIBRE_FILE = BASE_SECRET_DIR.resolve("ml_credentials.json");
     private static final Path TOKEN_FILE = BASE_SECRET_DIR.resolve("ml_tokens.json");
     private static final Object TOKEN_LOCK = new Object();
     private static final ObjectMapper mapper = new ObjectMapper();
-    private static final HttpClient httpClient = HttpClient.newHttpClient();
-    private static final HttpRetryHandler retryHandler = new HttpRetryHandler(httpClient, 30000L, 5, MercadoLibreAPI::verificarTokens);
+    private static final HttpClient httpClient = HttpClientFactory.getSharedClient();
+    private static final HttpRetryHandler retryHandler = new HttpRetryHandler(httpClient, 30000L, 5, MercadoLibreAPI::renovarTrasError401)
+            .habilitarHedging();
+    // El endpoint de oauth va sin onAuthError: un 401 ahí no se arregla renovando
+    private static final HttpRetryHandler authRetryHandler = new HttpRetryHandler(httpClient, 30000L, 5);
+    // Los tokens se renuevan en segundo plano este tiempo antes de vencer
+    private static final Duration MARGEN_RENOVACION = Duration.ofMinutes(10);
+    private static final Duration REINTENTO_RENOVACION = Duration.ofMinutes(1);
+    // Un 401 con tokens más nuevos que esto se reintenta sin renovar de nuevo (el request salió con los viejos)
+    private static final Duration TOKENS_RECIENTES = Duration.ofSeconds(30);
+    // Caché de catálogo: la relación SKU → item casi no cambia. El item trae available_quantity (stock de
+    // respaldo sin user_product): siempre se revalida (ttl cero), un 304 ahorra bajar y parsear el cuerpo
+    private static final Duration TTL_BUSQUEDA_SKU = Duration.ofHours(12);
+    private static final Duration TTL_ITEM = Duration.ZERO;
+    private static final int MAX_NOTAS_EN_VUELO = 8;
+    private static final String NOTA_IMPRESO = "impreso";
+    private static final int LIMITE_PAGINA = 50;
+    // /items?ids= acepta hasta 20 ids por request
+    private static final int MAX_IDS_MULTIGET = 20;
+    private static final int MAX_CONSULTAS_EN_VUELO = 8;
+    // Páginas de orders/search en vuelo entre todas las búsquedas (ready_to_print y cada ventana de acuerdo)
+    private static final TopeEnVuelo paginasEnVuelo = new TopeEnVuelo(8);
+    private static final Set<String> SKUS_REFRESCANDO = ConcurrentHashMap.newKeySet();
+    private static final PaginaOrdenes PAGINA_FALLIDA = new PaginaOrdenes(List.of(), 0);
     private static MLCredentials mlCredentials;
-    private static volatile TokensML tokens;
+    // Los request threads leen los tokens sin lock; solo la renovación los reemplaza
+    private static final AtomicReference<TokensML> tokens = new AtomicReference<>();
+    // Renovación en curso (single-flight): todos los que la necesitan esperan el mismo future
+    private static final AtomicReference<CompletableFuture<TokensML>> renovacionEnCurso = new AtomicReference<>();
+    private static volatile NotificacionesML notificaciones;
 
     public static String getUserId() throws IOException {
         MercadoLibreAPI.verificarTokens();
@@ -47,14 +100,15 @@ public class MercadoLibreAPI {
 
         final Supplier<HttpRequest> requestBuilder = () -> HttpRequest.newBuilder()
                 .uri(URI.create(url))
-                .header("Authorization", "Bearer " + tokens.accessToken)
+                .header("Authorization", "Bearer " + tokens.get().accessToken)
                 .GET()
                 .build();
 
         HttpResponse<String> response = retryHandler.sendWithRetry(requestBuilder);
 
-        if (response.statusCode() != 200) {
-            throw new IOException("Error al obtener el user ID de ML: " + response.body());
+        // null: circuito abierto, sin tiempo en la corrida o interrumpido
+        if (response == null || response.statusCode() != 200) {
+            throw new IOException("Error al obtener el user ID de ML: " + HttpRetryHandler.cuerpoComoTexto(response));
         }
 
         return mapper.readTree(response.body()).get("id").asString();
@@ -69,116 +123,39 @@ public class MercadoLibreAPI {
         List<Venta> ventas = new ArrayList<>();
         List<OrdenML> ordenes = new ArrayList<>();
         Set<Long> orderIdsSeen = new HashSet<>();
-        int offset = 0;
-        final int limit = 50;
-        boolean hasMore = true;
 
-        while (hasMore) {
-            final int currentOffset = offset;
-            String url = String.format(
-                    "https://api.mercadolibre.com/orders/search?seller=%s&shipping.status=ready_to_ship&shipping.substatus=ready_to_print&sort=date_asc&offset=%d&limit=%d",
-                    userId, currentOffset, limit);
+        List<OrdenResumen> ordenesReadyToPrint = obtenerOrdenesReadyToPrint(userId);
 
-            Supplier<HttpRequest> requestBuilder = () -> HttpRequest.newBuilder()
-                    .uri(URI.create(url))
-                    .header("Authorization", "Bearer " + tokens.accessToken)
-                    .GET()
-                    .build();
+        for (OrdenResumen order : ordenesReadyToPrint) {
+            long orderId = order.id();
+            if (!orderIdsSeen.add(orderId)) continue;
 
-            HttpResponse<String> response = retryHandler.sendWithRetry(requestBuilder);
+            // Excluir órdenes con tag "delivered"
+            if (order.entregada()) continue;
 
-            if (response == null || response.statusCode() != 200) {
-                String body = response != null ? response.body() : "sin respuesta";
-                AppLogger.warn("ML - Error al obtener órdenes ready_to_print (offset " + currentOffset + "): " + body);
-                break;
+            OrdenML ordenML = MLOrdersParser.aOrdenML(order, "ML");
+            ventas.addAll(ordenML.getItems());
+            if (!ordenML.getItems().isEmpty()) {
+                ordenes.add(ordenML);
             }
-
-            JsonNode root = mapper.readTree(response.body());
-            JsonNode results = root.path("results");
-
-            if (!results.isArray() || results.isEmpty()) {
-                break;
-            }
-
-            for (JsonNode order : results) {
-                long orderId = order.path("id").asLong();
-                if (!orderIdsSeen.add(orderId)) continue;
-
-                // Excluir órdenes con tag "delivered"
-                JsonNode tagsNode = order.path("tags");
-                if (tagsNode.isArray()) {
-                    boolean esEntregada = false;
-                    for (JsonNode tag : tagsNode) {
-                        if ("delivered".equals(tag.asString())) {
-                            esEntregada = true;
-                            break;
-                        }
-                    }
-                    if (esEntregada) continue;
-                }
-
-                String dateCreated = order.path("date_created").asString("");
-                OffsetDateTime fecha = null;
-                if (!dateCreated.isBlank()) {
-                    try {
-                        fecha = OffsetDateTime.parse(dateCreated);
-                    } catch (Exception e) {
-                        AppLogger.warn("ML - Error al parsear fecha de orden " + orderId + ": " + dateCreated);
-                    }
-                }
-                JsonNode packNode = order.path("pack_id");
-                Long packId = packNode.isNull() || packNode.isMissingNode() ? null : packNode.asLong();
-                OrdenML ordenML = new OrdenML(orderId, packId, fecha);
-
-                JsonNode orderItems = order.path("order_items");
-                if (!orderItems.isArray()) continue;
-
-                for (JsonNode orderItem : orderItems) {
-                    JsonNode item = orderItem.path("item");
-                    String sku = item.path("seller_sku").asString("");
-                    if (sku.isBlank()) {
-                        sku = item.path("seller_custom_field").asString("");
-                    }
-                    String itemTitle = item.path("title").asString("");
-                    double quantity = orderItem.path("quantity").asDouble(0);
-
-                    if (quantity <= 0) {
-                        AppLogger.warn("ML - Producto con cantidad inválida en orden " + orderId + ": " + sku);
-                        String errorSku = sku.isBlank() ? itemTitle : sku;
-                        Venta venta = new Venta("CANT INVALIDA: " + errorSku, quantity, "ML");
-                        ventas.add(venta);
-                        ordenML.getItems().add(venta);
-                        continue;
-                    }
-                    if (sku.isBlank()) {
-                        AppLogger.warn("ML - Producto sin SKU en orden " + orderId + ": " + itemTitle);
-                        Venta venta = new Venta("SIN SKU: " + itemTitle, quantity, "ML");
-                        ventas.add(venta);
-                        ordenML.getItems().add(venta);
-                        continue;
-                    }
-                    Venta venta = new Venta(sku, quantity, "ML");
-                    ventas.add(venta);
-                    ordenML.getItems().add(venta);
-                }
-
-                if (!ordenML.getItems().isEmpty()) {
-                    ordenes.add(ordenML);
-                }
-            }
-
-            JsonNode paging = root.path("paging");
-            int total = paging.path("total").asInt(0);
-            offset += limit;
-            hasMore = offset < total;
-
-            AppLogger.info(String.format("ML - Obtenidas %d/%d órdenes ready_to_print", Math.min(offset, total), total));
         }
 
         AppLogger.info("ML - Ventas ready_to_print: " + ventas.size());
         return new MLOrderResult(ventas, ordenes);
     }
 
+    /**
+     * Descarga las etiquetas ZPL de los envíos dados en un único archivo, en el mismo orden
+     * (ver {@link EtiquetasML}). La URL base se puede cambiar con -Dml.api.url, por ejemplo para un mock local.
+     *
+     * @return cantidad de envíos con etiqueta descargada
+     */
+    public static int descargarEtiquetas(List<Long> shipmentIds, File destino) throws IOException {
+        verificarTokens();
+        String apiBase = System.getProperty("ml.api.url", "https://api.mercadolibre.com");
+        return EtiquetasML.descargar(retryHandler, apiBase, () -> tokens.get().accessToken, shipmentIds, destino);
+    }
+
     /**
      * Obtiene las ventas de ML sin envío (acuerdo con el vendedor) que NO tengan la nota "impreso".
      */
@@ -187,134 +164,526 @@ public class MercadoLibreAPI {
 
         List<Venta> ventas = new ArrayList<>();
         List<OrdenML> ordenes = new ArrayList<>();
-        Set<Long> orderIdsSeen = new HashSet<>();
-        int offset = 0;
-        final int limit = 50;
-        boolean hasMore = true;
         int omitidas = 0;
+        // Las notas se consultan en paralelo, con un tope de consultas en vuelo
+        List<OrdenPendienteDeNota> pendientes = new ArrayList<>();
+        ConsultasDeNota notas = new ConsultasDeNota();
+
+        // Sincronizar el ledger local: incremental si hay una sincronización reciente, completa si no.
+        // Ya excluye las entregadas, las fulfilled y las que dejaron de estar pagas. Las notas de cada
+        // ventana o del incremental se empiezan a consultar apenas se leen, mientras se pagina el resto.
+        LedgerOrdenesML ledger = sincronizarLedgerAcuerdo(userId, notas::adelantar);
+        if (ledger == null) {
+            return new MLOrderResult(ventas, ordenes);
+        }
 
-        while (hasMore) {
-            final int currentOffset = offset;
-            String fechaDesde = java.time.OffsetDateTime.now()
-                    .minusDays(7)
-                    .format(java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:00:00.000XXX"));
+        for (OrdenResumen order : ledger.candidatas()) {
+            long orderId = order.id();
+
+            // Órdenes que ya sabemos que tienen nota: no se vuelven a consultar
+            if (OrdenesConNota.contiene(orderId)) {
+                omitidas++;
+                continue;
+            }
+
+            OrdenML ordenML = MLOrdersParser.aOrdenML(order, "ML Acuerdo");
+
+            // Verificar si la orden tiene alguna nota (en paralelo, se resuelve al final); si ya se
+            // pidió durante la sincronización se reutiliza esa consulta
+            pendientes.add(new OrdenPendienteDeNota(ordenML, notas.consultar(orderId)));
+        }
+
+        // Resolver las notas en el orden en que llegaron las órdenes
+        for (OrdenPendienteDeNota pendiente : pendientes) {
+            boolean conNota;
+            try {
+                conNota = pendiente.tieneNota().join();
+            } catch (Exception e) {
+                conNota = false;
+            }
+            OrdenML ordenML = pendiente.orden();
+            if (conNota) {
+                OrdenesConNota.agregar(ordenML.getOrderId());
+                omitidas++;
+                continue;
+            }
+            ventas.addAll(ordenML.getItems());
+            if (!ordenML.getItems().isEmpty()) {
+                ordenes.add(ordenML);
+            }
+        }
+        OrdenesConNota.guardar();
+        ledger.actualizarVentanasCerradas(OrdenesConNota::contiene);
+        ledger.guardar();
 
-            String url = String.format(
-                    "https://api.mercadolibre.com/orders/search?seller=%s&tags=no_shipping&order.status=paid&order.date_created.from=%s&sort=date_asc&offset=%d&limit=%d",
-                    userId, URLEncoder.encode(fechaDesde, StandardCharsets.UTF_8), currentOffset, limit);
+        AppLogger.info("ML - Ventas seller_agreement: " + ventas.size() + " (omitidas con nota: " + omitidas + ")");
+        return new MLOrderResult(ventas, ordenes);
+    }
 
-            Supplier<HttpRequest> requestBuilder = () -> HttpRequest.newBuilder()
-                    .uri(URI.create(url))
-                    .header("Authorization", "Bearer " + tokens.accessToken)
-                    .GET()
-                    .build();
+    /**
+     * Órdenes ready_to_print: de la caché si el receptor de notificaciones la mantiene al día,
+     * si no con un pedido completo a orders/search (que además vuelve a llenar la caché).
+     */
+    private static List<OrdenResumen> obtenerOrdenesReadyToPrint(String userId) {
+        CacheReadyToPrint cache = CacheReadyToPrint.instancia();
+        long inicioSync = System.currentTimeMillis();
+        if (notificaciones != null && cache.actualizadaPorNotificaciones(notificaciones.getActivoDesde(), inicioSync)) {
+            List<OrdenResumen> enCache = cache.ordenes();
+            AppLogger.info("ML - ready_to_print al día por notificaciones (" + enCache.size() + " órdenes en caché)");
+            return enCache;
+        }
 
-            HttpResponse<String> response = retryHandler.sendWithRetry(requestBuilder);
+        OrdenesLeidas todas = leerTodasLasPaginas(pedirPaginas(offset -> String.format(
+                "https://api.mercadolibre.com/orders/search?seller=%s&shipping.status=ready_to_ship&shipping.substatus=ready_to_print&sort=date_asc&offset=%d&limit=%d",
+                userId, offset, LIMITE_PAGINA), "ready_to_print"));
+        if (todas == null) return List.of();
+        cache.reemplazar(todas.ordenes(), inicioSync, todas.completas());
+        cache.guardar();
+        AppLogger.info("ML - Obtenidas " + todas.ordenes().size() + " órdenes ready_to_print");
+        return todas.ordenes();
+    }
 
-            if (response == null || response.statusCode() != 200) {
-                String body = response != null ? response.body() : "sin respuesta";
-                AppLogger.warn("ML - Error al obtener órdenes seller_agreement (offset " + currentOffset + "): " + body);
-                break;
+    // NOTIFICACIONES
+    // ---------------------------------------------------------------------------------------------------------
+
+    /**
+     * Levanta el receptor de notificaciones si se configuró un puerto con -Dml.notificaciones.puerto.
+     * Escucha en loopback salvo que -Dml.notificaciones.host indique otra interfaz, y solo acepta
+     * notificaciones de esta cuenta y de esta aplicación.
+     * Mientras esté activo, el ledger de seller_agreement y la caché de ready_to_print se mantienen al día
+     * con cada notificación y generar el pickit no necesita consultar orders/search.
+     */
+    private static synchronized void iniciarNotificaciones() {
+        Integer puerto = Integer.getInteger("ml.notificaciones.puerto");
+        if (puerto == null || notificaciones != null) return;
+        try {
+            long userId = tokens.get().userId;
+            if (userId == 0) {
+                // Tokens guardados antes de registrar el user_id
+                userId = Long.parseLong(getUserId());
+            }
+            long applicationId;
+            try {
+                applicationId = Long.parseLong(mlCredentials.clientId.trim());
+            } catch (RuntimeException e) {
+                applicationId = 0;
             }
+            notificaciones = NotificacionesML.iniciar(System.getProperty("ml.notificaciones.host"), puerto, userId,
+                    applicationId, MercadoLibreAPI::procesarNotificacion);
+        } catch (IOException | RuntimeException e) {
+            AppLogger.warn("ML - No se pudo iniciar el receptor de notificaciones en el puerto " + puerto + ": " + e.getMessage());
+        }
+    }
 
-            JsonNode root = mapper.readTree(response.body());
-            JsonNode results = root.path("results");
+    static void procesarNotificacion(NotificacionesML.Notificacion notificacion) {
+        long id = NotificacionesML.idDelRecurso(notificacion.resource());
+        if (id < 0) return;
+        boolean refrescada;
+        try {
+            verificarTokens();
+            refrescada = switch (notificacion.topic()) {
+                case "orders_v2" -> refrescarOrden(id);
+                case "shipments" -> refrescarEnvio(id);
+                default -> true;
+            };
+        } catch (RuntimeException e) {
+            AppLogger.warn("ML - Error al refrescar " + notificacion.resource() + ": " + e.getMessage());
+            refrescada = false;
+        }
+        if (!refrescada) {
+            // El cambio se perdió: las copias locales dejan de estar al día hasta la próxima sincronización
+            LedgerOrdenesML.instancia().marcarFalloNotificacion();
+            CacheReadyToPrint.instancia().marcarFalloNotificacion();
+        }
+    }
 
-            if (!results.isArray() || results.isEmpty()) {
-                break;
-            }
-
-            for (JsonNode order : results) {
-                long orderId = order.path("id").asLong();
-                if (!orderIdsSeen.add(orderId)) continue;
-
-                // Excluir órdenes con tag "delivered"
-                JsonNode tagsNode = order.path("tags");
-                if (tagsNode.isArray()) {
-                    boolean esEntregada = false;
-                    for (JsonNode tag : tagsNode) {
-                        if ("delivered".equals(tag.asString())) {
-                            esEntregada = true;
-                            break;
-                        }
-                    }
-                    if (esEntregada) continue;
-                }
+    /**
+     * Vuelve a leer un envío notificado y refresca sus órdenes (las que ya estaban en la caché
+     * ready_to_print y la que informa el propio envío).
+     *
+     * @return false si no se pudo leer el envío o alguna de sus órdenes
+     */
+    private static boolean refrescarEnvio(long shipmentId) {
+        JsonNode envio = obtenerEnvio(shipmentId);
+        if (envio == null) return false;
+        Set<Long> orderIds = new LinkedHashSet<>(CacheReadyToPrint.instancia().ordenesDelEnvio(shipmentId));
+        long orderId = envio.path("order_id").asLong(0);
+        if (orderId > 0) orderIds.add(orderId);
+        boolean refrescadas = true;
+        for (long id : orderIds) {
+            refrescadas &= refrescarOrden(id, envio);
+        }
+        return refrescadas;
+    }
 
-                // Excluir órdenes completadas (fulfilled)
-                if (order.path("fulfilled").asBoolean(false)) continue;
+    private static boolean refrescarOrden(long orderId) {
+        return refrescarOrden(orderId, null);
+    }
 
-                // Verificar si la orden tiene alguna nota
-                if (tieneNota(orderId)) {
-                    omitidas++;
-                    continue;
-                }
+    /**
+     * Vuelve a leer una orden y la aplica donde corresponda: las órdenes sin envío van al ledger de
+     * seller_agreement; las con envío entran o salen de la caché ready_to_print según el estado del envío.
+     *
+     * @return false si no se pudo leer la orden o su envío
+     */
+    private static boolean refrescarOrden(long orderId, JsonNode envio) {
+        HttpResponse<InputStream> response = retryHandler.sendWithRetry(() -> HttpRequest.newBuilder()
+                .uri(URI.create("https://api.mercadolibre.com/orders/" + orderId))
+                .header("Authorization", "Bearer " + tokens.get().accessToken)
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofInputStream());
+        if (response == null || response.statusCode() != 200) {
+            AppLogger.warn("ML - Error al refrescar orden notificada " + orderId + ": " + HttpRetryHandler.cuerpoComoTexto(response));
+            return false;
+        }
+        OrdenResumen orden = MLOrdersParser.parsearOrden(response.body());
+        if (orden == null) return false;
+
+        if (orden.sinEnvio()) {
+            LedgerOrdenesML ledger = LedgerOrdenesML.instancia();
+            ledger.actualizar(orden);
+            ledger.guardar();
+            return true;
+        }
+        if (orden.shipmentId() == null) return true;
 
-                String dateCreated = order.path("date_created").asString("");
-                OffsetDateTime fecha = null;
-                if (!dateCreated.isBlank()) {
-                    try {
-                        fecha = OffsetDateTime.parse(dateCreated);
-                    } catch (Exception e) {
-                        AppLogger.warn("ML - Error al parsear fecha de orden " + orderId + ": " + dateCreated);
-                    }
+        if (envio == null || envio.path("id").asLong(0) != orden.shipmentId()) {
+            envio = obtenerEnvio(orden.shipmentId());
+            if (envio == null) return false;
+        }
+        CacheReadyToPrint cache = CacheReadyToPrint.instancia();
+        if ("ready_to_ship".equals(envio.path("status").asString(""))
+                && "ready_to_print".equals(envio.path("substatus").asString(""))) {
+            cache.actualizar(orden);
+        } else {
+            cache.quitar(orden);
+        }
+        cache.guardar();
+        return true;
+    }
+
+    private static JsonNode obtenerEnvio(long shipmentId) {
+        HttpResponse<String> response = retryHandler.sendWithRetry(() -> HttpRequest.newBuilder()
+                .uri(URI.create("https://api.mercadolibre.com/shipments/" + shipmentId))
+                .header("Authorization", "Bearer " + tokens.get().accessToken)
+                .GET()
+                .build());
+        if (response == null || response.statusCode() != 200) {
+            AppLogger.warn("ML - Error al refrescar envío notificado " + shipmentId + ": "
+                    + (response != null ? response.body() : "sin respuesta"));
+            return null;
+        }
+        try {
+            return mapper.readTree(response.body());
+        } catch (Exception e) {
+            AppLogger.warn("ML - Error al leer envío " + shipmentId + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Sincroniza el ledger de órdenes sin envío: si hubo una sincronización previa pide las órdenes
+     * modificadas desde entonces (sin filtrar por status, para enterarse de las que se cancelaron o
+     * entregaron). Cuando toca una completa, además vuelve a traer las órdenes pagas de los últimos 7 días
+     * por ventanas de un día, salteando las ventanas cerradas.
+     *
+     * @param alLeer recibe las órdenes de cada ventana y del incremental apenas se leen (desde cualquier thread)
+     * @return el ledger actualizado, o null si la fuente fue cancelada
+     */
+    private static LedgerOrdenesML sincronizarLedgerAcuerdo(String userId, Consumer<List<OrdenResumen>> alLeer) {
+        LedgerOrdenesML ledger = LedgerOrdenesML.instancia();
+        long inicioSync = System.currentTimeMillis();
+        boolean completa = ledger.requiereSyncCompleta(inicioSync);
+
+        if (!completa && notificaciones != null && ledger.actualizadoPorNotificaciones(notificaciones.getActivoDesde())) {
+            AppLogger.info("ML - seller_agreement al día por notificaciones (" + ledger.size() + " órdenes en el ledger)");
+            return ledger;
+        }
+
+        // Las ventanas cerradas solo se pueden saltear si el incremental trajo todo lo que cambió en ellas
+        boolean deltaCompleto = false;
+        if (ledger.tieneSyncPrevia()) {
+            String desde = ledger.desdeDelta();
+            OrdenesLeidas modificadas = leerTodasLasPaginas(pedirPaginas(offset -> String.format(
+                    "https://api.mercadolibre.com/orders/search?seller=%s&tags=no_shipping&order.date_last_updated.from=%s&sort=date_asc&offset=%d&limit=%d",
+                    userId, URLEncoder.encode(desde, StandardCharsets.UTF_8), offset, LIMITE_PAGINA), "seller_agreement (incremental)"));
+            if (modificadas == null) return null;
+            alLeer.accept(modificadas.ordenes());
+            ledger.aplicarDelta(modificadas.ordenes(), inicioSync, modificadas.completas());
+            deltaCompleto = modificadas.completas();
+            AppLogger.info("ML - Sincronización incremental seller_agreement: " + modificadas.ordenes().size()
+                    + " órdenes modificadas desde " + desde + " (" + ledger.size() + " en el ledger)");
+        }
+
+        if (completa && !sincronizarVentanasAcuerdo(userId, ledger, inicioSync, deltaCompleto, alLeer)) {
+            return null;
+        }
+        ledger.guardar();
+        return ledger;
+    }
+
+    /**
+     * Sincronización completa de seller_agreement: cada ventana de un día se pagina por su lado (offsets
+     * chicos y un conjunto que no se corre mientras se pagina) y todas en paralelo; las órdenes se
+     * deduplican por id.
+     *
+     * @return false si la fuente fue cancelada
+     */
+    private static boolean sincronizarVentanasAcuerdo(String userId, LedgerOrdenesML ledger, long inicioSync,
+                                                      boolean saltearCerradas, Consumer<List<OrdenResumen>> alLeer) {
+        List<LedgerOrdenesML.Ventana> aLeer = new ArrayList<>();
+        int cerradas = 0;
+        for (LedgerOrdenesML.Ventana ventana : LedgerOrdenesML.ventanas()) {
+            if (saltearCerradas && ledger.ventanaCerrada(ventana.dia())) {
+                cerradas++;
+            } else {
+                aLeer.add(ventana);
+            }
+        }
+
+        // pedirPaginas pide la primera página de forma sincrónica, así que cada ventana arranca en su thread
+        List<CompletableFuture<OrdenesLeidas>> lecturas = new ArrayList<>();
+        for (LedgerOrdenesML.Ventana ventana : aLeer) {
+            lecturas.add(CompletableFuture.supplyAsync(() -> {
+                OrdenesLeidas leidas = leerTodasLasPaginas(pedirPaginas(offset -> String.format(
+                                "https://api.mercadolibre.com/orders/search?seller=%s&tags=no_shipping&order.status=paid&order.date_created.from=%s&order.date_created.to=%s&sort=date_asc&offset=%d&limit=%d",
+                                userId, URLEncoder.encode(ventana.desde(), StandardCharsets.UTF_8),
+                                URLEncoder.encode(ventana.hasta(), StandardCharsets.UTF_8), offset, LIMITE_PAGINA),
+                        "seller_agreement " + ventana.dia()));
+                if (leidas != null) alLeer.accept(leidas.ordenes());
+                return leidas;
+            }, HttpClientFactory.getExecutor()));
+        }
+
+        Map<Long, OrdenResumen> porId = new LinkedHashMap<>();
+        Set<LocalDate> diasLeidos = new HashSet<>();
+        boolean completas = true;
+        for (int i = 0; i < lecturas.size(); i++) {
+            OrdenesLeidas leidas;
+            try {
+                leidas = lecturas.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                lecturas.forEach(lectura -> lectura.cancel(true));
+                return false;
+            } catch (ExecutionException e) {
+                AppLogger.warn("ML - Error al obtener órdenes seller_agreement " + aLeer.get(i).dia() + ": " + e.getCause());
+                leidas = null;
+            }
+            if (leidas == null || !leidas.completas()) {
+                completas = false;
+            }
+            if (leidas == null) continue;
+            diasLeidos.add(aLeer.get(i).dia());
+            for (OrdenResumen orden : leidas.ordenes()) {
+                porId.putIfAbsent(orden.id(), orden);
+            }
+        }
+
+        ledger.reemplazarVentanas(new ArrayList<>(porId.values()), diasLeidos, inicioSync, completas);
+        AppLogger.info("ML - Sincronización completa seller_agreement: " + porId.size() + " órdenes en "
+                + aLeer.size() + " ventanas (" + cerradas + " ventanas cerradas omitidas)");
+        return true;
+    }
+
+    /**
+     * Espera todas las páginas pedidas y junta sus órdenes en orden de offset.
+     *
+     * @return las órdenes leídas (completas = false si alguna página falló), o null si el thread fue interrumpido
+     */
+    private static OrdenesLeidas leerTodasLasPaginas(List<PaginaPendiente> paginas) {
+        List<OrdenResumen> ordenes = new ArrayList<>();
+        boolean completas = true;
+        for (PaginaPendiente pendiente : paginas) {
+            PaginaOrdenes pagina = esperarPagina(pendiente);
+            if (pagina == null) {
+                cancelarPaginas(paginas);
+                return null;
+            }
+            if (pagina == PAGINA_FALLIDA) {
+                completas = false;
+            }
+            ordenes.addAll(pagina.ordenes());
+        }
+        return new OrdenesLeidas(ordenes, completas);
+    }
+
+    /**
+     * Pide todas las páginas de un orders/search. La primera se pide sola para conocer paging.total;
+     * con eso ya se conocen todos los offsets restantes y se piden de forma asíncrona, con a lo sumo
+     * {@link #paginasEnVuelo} páginas pedidas a la vez entre todas las búsquedas: las demás esperan en
+     * cola sin ocupar threads ni reservar permisos del rate limiter.
+     * Las páginas se devuelven en orden de offset; una página que falla se completa con null.
+     */
+    private static List<PaginaPendiente> pedirPaginas(IntFunction<String> urlPorOffset, String etiqueta) {
+        List<PaginaPendiente> paginas = new ArrayList<>();
+        HttpResponse<InputStream> response = retryHandler.sendWithRetry(pedidoPagina(urlPorOffset.apply(0)),
+                HttpResponse.BodyHandlers.ofInputStream());
+        PaginaOrdenes primera = leerPagina(response, etiqueta, 0);
+        paginas.add(new PaginaPendiente(0, CompletableFuture.completedFuture(primera)));
+        if (primera == null || primera.ordenes().isEmpty()) {
+            return paginas;
+        }
+
+        for (int offset = LIMITE_PAGINA; offset < primera.total(); offset += LIMITE_PAGINA) {
+            final int offsetPagina = offset;
+            CompletableFuture<PaginaOrdenes> pagina = new CompletableFuture<>();
+            paginasEnVuelo.ejecutar(() -> {
+                if (pagina.isDone()) {
+                    // Cancelada mientras esperaba turno
+                    paginasEnVuelo.liberar();
+                    return;
                 }
-                JsonNode packNode = order.path("pack_id");
-                Long packId = packNode.isNull() || packNode.isMissingNode() ? null : packNode.asLong();
-                OrdenML ordenML = new OrdenML(orderId, packId, fecha);
-
-                JsonNode orderItems = order.path("order_items");
-                if (!orderItems.isArray()) continue;
-
-                for (JsonNode orderItem : orderItems) {
-                    JsonNode item = orderItem.path("item");
-                    String sku = item.path("seller_sku").asString("");
-                    if (sku.isBlank()) {
-                        sku = item.path("seller_custom_field").asString("");
-                    }
-                    String itemTitle = item.path("title").asString("");
-                    double quantity = orderItem.path("quantity").asDouble(0);
-
-                    if (quantity <= 0) {
-                        AppLogger.warn("ML Acuerdo - Producto con cantidad inválida en orden " + orderId + ": " + sku);
-                        String errorSku = sku.isBlank() ? itemTitle : sku;
-                        Venta venta = new Venta("CANT INVALIDA: " + errorSku, quantity, "ML Acuerdo");
-                        ventas.add(venta);
-                        ordenML.getItems().add(venta);
-                        continue;
+                CompletableFuture<PaginaOrdenes> pedida;
+                try {
+                    pedida = retryHandler
+                            .sendWithRetryAsync(pedidoPagina(urlPorOffset.apply(offsetPagina)), HttpResponse.BodyHandlers.ofInputStream())
+                            .thenApply(r -> leerPagina(r, etiqueta, offsetPagina));
+                } catch (RuntimeException e) {
+                    pedida = CompletableFuture.failedFuture(e);
+                }
+                pedida.whenComplete((leida, e) -> {
+                    paginasEnVuelo.liberar();
+                    if (e != null) {
+                        AppLogger.warn("ML - Error al obtener órdenes " + etiqueta + " (offset " + offsetPagina + "): " + e.getMessage());
                     }
-                    if (sku.isBlank()) {
-                        AppLogger.warn("ML Acuerdo - Producto sin SKU en orden " + orderId + ": " + itemTitle);
-                        Venta venta = new Venta("SIN SKU: " + itemTitle, quantity, "ML Acuerdo");
-                        ventas.add(venta);
-                        ordenML.getItems().add(venta);
-                        continue;
+                    pagina.complete(leida);
+                });
+            });
+            paginas.add(new PaginaPendiente(offsetPagina, pagina));
+        }
+        return paginas;
+    }
+
+    /**
+     * Consultas de nota de una corrida de seller_agreement, a lo sumo {@link #MAX_NOTAS_EN_VUELO} a la vez.
+     * Cada orden se consulta una sola vez: la consulta que se adelantó durante la sincronización del
+     * ledger es la misma que después se resuelve con las candidatas.
+     */
+    private static final class ConsultasDeNota {
+        private final TopeEnVuelo enVuelo = new TopeEnVuelo(MAX_NOTAS_EN_VUELO);
+        private final ConcurrentHashMap<Long, CompletableFuture<Boolean>> porOrden = new ConcurrentHashMap<>();
+
+        /**
+         * Empieza a consultar las órdenes leídas que pueden terminar siendo candidatas.
+         */
+        void adelantar(List<OrdenResumen> ordenes) {
+            for (OrdenResumen orden : ordenes) {
+                if (LedgerOrdenesML.pendienteDeImprimir(orden) && !OrdenesConNota.contiene(orden.id())) {
+                    consultar(orden.id());
+                }
+            }
+        }
+
+        CompletableFuture<Boolean> consultar(long orderId) {
+            CompletableFuture<Boolean> nota = new CompletableFuture<>();
+            CompletableFuture<Boolean> existente = porOrden.putIfAbsent(orderId, nota);
+            if (existente != null) return existente;
+            enVuelo.ejecutar(() -> {
+                CompletableFuture<Boolean> pedida;
+                try {
+                    pedida = tieneNotaAsync(orderId);
+                } catch (RuntimeException e) {
+                    pedida = CompletableFuture.failedFuture(e);
+                }
+                pedida.whenComplete((conNota, e) -> {
+                    enVuelo.liberar();
+                    if (e != null) {
+                        nota.completeExceptionally(e);
+                    } else {
+                        nota.complete(conNota);
                     }
-                    Venta venta = new Venta(sku, quantity, "ML Acuerdo");
-                    ventas.add(venta);
-                    ordenML.getItems().add(venta);
+                });
+            });
+            return nota;
+        }
+    }
+
+    /**
+     * Tope de tareas asíncronas en vuelo: las que no entran quedan en cola y arrancan a medida que
+     * terminan las anteriores, sin bloquear a quien las encola.
+     */
+    private static final class TopeEnVuelo {
+        private final int maximo;
+        private final ArrayDeque<Runnable> enEspera = new ArrayDeque<>();
+        private int enVuelo;
+
+        TopeEnVuelo(int maximo) {
+            this.maximo = maximo;
+        }
+
+        /**
+         * Arranca la tarea ahora o cuando haya lugar. La tarea tiene que llamar a {@link #liberar()} al terminar.
+         */
+        void ejecutar(Runnable tarea) {
+            synchronized (this) {
+                if (enVuelo >= maximo) {
+                    enEspera.add(tarea);
+                    return;
                 }
+                enVuelo++;
+            }
+            tarea.run();
+        }
 
-                if (!ordenML.getItems().isEmpty()) {
-                    ordenes.add(ordenML);
+        void liberar() {
+            Runnable siguiente;
+            synchronized (this) {
+                siguiente = enEspera.poll();
+                if (siguiente == null) {
+                    enVuelo--;
+                    return;
                 }
             }
+            // En otro thread: liberar() puede llamarse desde el callback de una respuesta ya completada
+            HttpClientFactory.getExecutor().execute(siguiente);
+        }
+    }
 
-            JsonNode paging = root.path("paging");
-            int total = paging.path("total").asInt(0);
-            offset += limit;
-            hasMore = offset < total;
+    private static Supplier<HttpRequest> pedidoPagina(String url) {
+        return () -> HttpRequest.newBuilder()
+                .uri(URI.create(url))
+                .header("Authorization", "Bearer " + tokens.get().accessToken)
+                .GET()
+                .build();
+    }
 
-            AppLogger.info(String.format("ML - Obtenidas %d/%d órdenes seller_agreement", Math.min(offset, total), total));
+    private static PaginaOrdenes leerPagina(HttpResponse<InputStream> response, String etiqueta, int offset) {
+        if (response == null || response.statusCode() != 200) {
+            String body = HttpRetryHandler.cuerpoComoTexto(response);
+            AppLogger.warn("ML - Error al obtener órdenes " + etiqueta + " (offset " + offset + "): " + body);
+            return null;
         }
+        return MLOrdersParser.parsearPagina(response.body());
+    }
 
-        AppLogger.info("ML - Ventas seller_agreement: " + ventas.size() + " (omitidas con nota: " + omitidas + ")");
-        return new MLOrderResult(ventas, ordenes);
+    /**
+     * Espera una página pedida por {@link #pedirPaginas}. Devuelve null si el thread fue interrumpido
+     * (fuente cancelada por el deadline); una página fallida (ya logueada) se devuelve como
+     * {@link #PAGINA_FALLIDA}, vacía, para seguir con las demás.
+     */
+    private static PaginaOrdenes esperarPagina(PaginaPendiente pendiente) {
+        try {
+            PaginaOrdenes pagina = pendiente.pagina().get();
+            return pagina != null ? pagina : PAGINA_FALLIDA;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return PAGINA_FALLIDA;
+        }
+    }
+
+    private static void cancelarPaginas(List<PaginaPendiente> paginas) {
+        for (PaginaPendiente pagina : paginas) {
+            pagina.pagina().cancel(true);
+        }
     }
 
     /**
      * Busca el stock disponible de un producto por SKU.
-     * Primero busca por atributo SELLER_SKU, si no encuentra intenta por seller_custom_field.
+     * Usa el índice SKU → user_product_id (ver {@link IndiceSkuML}) y solo si el SKU no está indexado
+     * busca por atributo SELLER_SKU y, si no encuentra, por seller_custom_field.
      *
      * @param userId ID del usuario/vendedor en ML
      * @param sku    SKU del producto a buscar
@@ -323,6 +692,77 @@ public class MercadoLibreAPI {
     public static int obtenerStockPorSku(String userId, String sku) {
         verificarTokens();
 
+        int stock = stockPorSku(userId, sku);
+        IndiceSkuML.guardar();
+        return stock;
+    }
+
+    private static int stockPorSku(String userId, String sku) {
+        IndiceSkuML.Mapeo mapeo = IndiceSkuML.buscar(sku);
+        boolean indexado = mapeo != null;
+        if (indexado) {
+            if (mapeo.paraRefrescar()) refrescarMapeoEnSegundoPlano(userId, sku);
+        } else {
+            mapeo = descubrirMapeo(userId, sku);
+            if (mapeo == null) return -1;
+        }
+
+        int stock = stockDelMapeo(mapeo);
+        // Un 404 invalidó el mapeo indexado: se vuelve a descubrir una sola vez
+        if (stock == -1 && indexado && IndiceSkuML.buscar(sku) == null) {
+            mapeo = descubrirMapeo(userId, sku);
+            if (mapeo == null) return -1;
+            stock = stockDelMapeo(mapeo);
+        }
+        return stock;
+    }
+
+    private static int stockDelMapeo(IndiceSkuML.Mapeo mapeo) {
+        if (mapeo.userProductId() == null) {
+            // Fallback: usar available_quantity del item
+            JsonNode item = obtenerItem(mapeo.itemId());
+            return item != null ? item.path("available_quantity").asInt(0) : -1;
+        }
+        return obtenerStockDeUserProduct(mapeo.userProductId());
+    }
+
+    /**
+     * Resuelve SKU → item_id → user_product_id consultando a ML y lo guarda en el índice.
+     *
+     * @return el mapeo, o null si no hay item con ese SKU o no se pudo leer
+     */
+    private static IndiceSkuML.Mapeo descubrirMapeo(String userId, String sku) {
+        String itemId = buscarItemPorSku(userId, sku);
+        if (itemId == null) {
+            return null;
+        }
+        JsonNode item = obtenerItem(itemId);
+        if (item == null) {
+            // La búsqueda cacheada puede apuntar a un item que ya no existe
+            invalidarBusquedaSku(userId, sku);
+            return null;
+        }
+        String userProductId = item.path("user_product_id").asString("");
+        return IndiceSkuML.guardarMapeo(sku, itemId, userProductId.isBlank() ? null : userProductId);
+    }
+
+    private static void refrescarMapeoEnSegundoPlano(String userId, String sku) {
+        if (!SKUS_REFRESCANDO.add(sku)) return;
+        CompletableFuture.runAsync(() -> {
+            try {
+                if (descubrirMapeo(userId, sku) != null) IndiceSkuML.guardar();
+            } catch (Exception e) {
+                AppLogger.warn("ML - Error refrescando el índice del SKU " + sku + ": " + e.getMessage());
+            } finally {
+                SKUS_REFRESCANDO.remove(sku);
+            }
+        }, HttpClientFactory.getExecutor());
+    }
+
+    /**
+     * @return itemId del primer item con ese SKU, o null si no hay
+     */
+    private static String buscarItemPorSku(String userId, String sku) {
         String encodedSku = URLEncoder.encode(sku, StandardCharsets.UTF_8);
 
         // Intentar primero con seller_sku (atributo SELLER_SKU)
@@ -332,12 +772,19 @@ public class MercadoLibreAPI {
         if (itemId == null) {
             itemId = buscarItemPorSkuParam(userId, encodedSku, "sku");
         }
+        return itemId;
+    }
 
-        if (itemId == null) {
-            return -1;
-        }
+    private static String urlBusquedaSku(String userId, String encodedSku, String paramName) {
+        return String.format(
+                "https://api.mercadolibre.com/users/%s/items/search?%s=%s",
+                userId, paramName, encodedSku);
+    }
 
-        return obtenerStockDeItem(itemId);
+    private static void invalidarBusquedaSku(String userId, String sku) {
+        String encodedSku = URLEncoder.encode(sku, StandardCharsets.UTF_8);
+        HttpCache.invalidar(urlBusquedaSku(userId, encodedSku, "seller_sku"));
+        HttpCache.invalidar(urlBusquedaSku(userId, encodedSku, "sku"));
     }
 
     /**
@@ -345,17 +792,15 @@ public class MercadoLibreAPI {
      * @return itemId si encuentra, null si no
      */
     private static String buscarItemPorSkuParam(String userId, String encodedSku, String paramName) {
-        String url = String.format(
-                "https://api.mercadolibre.com/users/%s/items/search?%s=%s",
-                userId, paramName, encodedSku);
+        String url = urlBusquedaSku(userId, encodedSku, paramName);
 
         Supplier<HttpRequest> requestBuilder = () -> HttpRequest.newBuilder()
                 .uri(URI.create(url))
-                .header("Authorization", "Bearer " + tokens.accessToken)
+                .header("Authorization", "Bearer " + tokens.get().accessToken)
                 .GET()
                 .build();
 
-        HttpResponse<String> response = retryHandler.sendWithRetry(requestBuilder);
+        HttpResponse<String> response = retryHandler.sendWithCache(requestBuilder, TTL_BUSQUEDA_SKU);
 
         if (response == null || response.statusCode() != 200) {
             return null;
@@ -366,6 +811,8 @@ public class MercadoLibreAPI {
             JsonNode results = root.path("results");
 
             if (!results.isArray() || results.isEmpty()) {
+                // Un "no encontrado" no se guarda: el SKU puede publicarse en cualquier momento
+                HttpCache.invalidar(url);
                 return null;
             }
 
@@ -376,42 +823,44 @@ public class MercadoLibreAPI {
     }
 
     /**
-     * Obtiene el stock disponible de un item por su ID.
-     * Primero obtiene el user_product_id y luego consulta el stock distribuido.
+     * Obtiene un item por su ID (vía caché). Un 404 lo saca del índice de SKUs.
+     *
+     * @return el cuerpo del item, o null si no se pudo obtener
      */
-    private static int obtenerStockDeItem(String itemId) {
-        // Paso 1: Obtener el item para extraer user_product_id
+    private static JsonNode obtenerItem(String itemId) {
         Supplier<HttpRequest> itemRequest = () -> HttpRequest.newBuilder()
                 .uri(URI.create("https://api.mercadolibre.com/items/" + itemId))
-                .header("Authorization", "Bearer " + tokens.accessToken)
+                .header("Authorization", "Bearer " + tokens.get().accessToken)
                 .GET()
                 .build();
 
-        HttpResponse<String> itemResponse = retryHandler.sendWithRetry(itemRequest);
+        HttpResponse<String> itemResponse = retryHandler.sendWithCache(itemRequest, TTL_ITEM);
 
         if (itemResponse == null || itemResponse.statusCode() != 200) {
             AppLogger.warn("ML - Error al obtener item " + itemId + ": " +
                     (itemResponse != null ? itemResponse.body() : "sin respuesta"));
-            return -1;
+            if (itemResponse != null && itemResponse.statusCode() == 404) {
+                IndiceSkuML.invalidarItem(itemId);
+            }
+            return null;
         }
 
-        String userProductId;
         try {
-            JsonNode itemRoot = mapper.readTree(itemResponse.body());
-            userProductId = itemRoot.path("user_product_id").asString("");
-            if (userProductId.isBlank()) {
-                // Fallback: usar available_quantity del item
-                return itemRoot.path("available_quantity").asInt(0);
-            }
+            return mapper.readTree(itemResponse.body());
         } catch (Exception e) {
-            AppLogger.warn("ML - Error al leer user_product_id de item " + itemId + ": " + e.getMessage());
-            return -1;
+            AppLogger.warn("ML - Error al leer item " + itemId + ": " + e.getMessage());
+            return null;
         }
+    }
 
-        // Paso 2: Obtener stock distribuido del user_product
+    /**
+     * Stock distribuido de un user_product: suma de todas sus ubicaciones.
+     * Un 404 saca al user_product del índice de SKUs.
+     */
+    private static int obtenerStockDeUserProduct(String userProductId) {
         Supplier<HttpRequest> stockRequest = () -> HttpRequest.newBuilder()
                 .uri(URI.create("https://api.mercadolibre.com/user-products/" + userProductId + "/stock"))
-                .header("Authorization", "Bearer " + tokens.accessToken)
+                .header("Authorization", "Bearer " + tokens.get().accessToken)
                 .GET()
                 .build();
 
@@ -420,6 +869,9 @@ public class MercadoLibreAPI {
         if (stockResponse == null || stockResponse.statusCode() != 200) {
             AppLogger.warn("ML - Error al obtener stock de user_product " + userProductId + ": " +
                     (stockResponse != null ? stockResponse.body() : "sin respuesta"));
+            if (stockResponse != null && stockResponse.statusCode() == 404) {
+                IndiceSkuML.invalidarUserProduct(userProductId);
+            }
             return -1;
         }
 
@@ -444,32 +896,172 @@ public class MercadoLibreAPI {
     }
 
     /**
-     * Obtiene el stock de múltiples SKUs en paralelo.
+     * Obtiene el stock de múltiples SKUs en lote. Los SKUs del índice van directo al stock del
+     * user_product; para el resto los items se piden con multiget (/items?ids=) y las búsquedas por SKU
+     * y los stocks de user_product, que no tienen multiget, con concurrencia acotada.
      *
      * @param userId ID del usuario/vendedor en ML
      * @param skus   Lista de SKUs a buscar
      * @return Mapa de SKU → stock disponible (-1 si no se encontró)
      */
     public static Map<String, Integer> obtenerStockPorSkus(String userId, List<String> skus) {
-        Map<String, Integer> stockMap = new LinkedHashMap<>();
+        verificarTokens();
 
-        // Usar CompletableFuture para llamadas en paralelo
-        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        // Paso 0: SKUs ya indexados
+        Map<String, IndiceSkuML.Mapeo> mapeos = new HashMap<>();
+        Set<String> sinIndexar = new LinkedHashSet<>();
+        for (String sku : new LinkedHashSet<>(skus)) {
+            IndiceSkuML.Mapeo mapeo = IndiceSkuML.buscar(sku);
+            if (mapeo == null) {
+                sinIndexar.add(sku);
+                continue;
+            }
+            mapeos.put(sku, mapeo);
+            if (mapeo.paraRefrescar()) refrescarMapeoEnSegundoPlano(userId, sku);
+        }
+
+        // Paso 1: SKU → item_id. La búsqueda no tiene multiget; va por la caché y con concurrencia acotada
+        Map<String, String> itemPorSku = enParalelo(sinIndexar, sku -> buscarItemPorSku(userId, sku));
+
+        // Paso 2: item_id → user_product_id / available_quantity, de a MAX_IDS_MULTIGET items por request.
+        // También los items indexados sin user_product, que necesitan su available_quantity
+        Set<String> itemIds = new LinkedHashSet<>(itemPorSku.values());
+        for (IndiceSkuML.Mapeo mapeo : mapeos.values()) {
+            if (mapeo.userProductId() == null) itemIds.add(mapeo.itemId());
+        }
+        Map<String, JsonNode> items = obtenerItemsMultiget(itemIds);
+        for (Map.Entry<String, String> entry : itemPorSku.entrySet()) {
+            JsonNode item = items.get(entry.getValue());
+            if (item == null) continue;
+            String userProductId = item.path("user_product_id").asString("");
+            mapeos.put(entry.getKey(), IndiceSkuML.guardarMapeo(entry.getKey(), entry.getValue(),
+                    userProductId.isBlank() ? null : userProductId));
+        }
 
+        // Paso 3: user_product_id → stock distribuido
+        Set<String> userProducts = new LinkedHashSet<>();
+        for (IndiceSkuML.Mapeo mapeo : mapeos.values()) {
+            if (mapeo.userProductId() != null) userProducts.add(mapeo.userProductId());
+        }
+        Map<String, Integer> stockPorUserProduct = enParalelo(userProducts, MercadoLibreAPI::obtenerStockDeUserProduct);
+
+        Map<String, Integer> stockPorSku = new HashMap<>();
+        List<String> invalidados = new ArrayList<>();
+        for (Map.Entry<String, IndiceSkuML.Mapeo> entry : mapeos.entrySet()) {
+            IndiceSkuML.Mapeo mapeo = entry.getValue();
+            int stock;
+            if (mapeo.userProductId() == null) {
+                // Fallback: usar available_quantity del item
+                JsonNode item = items.get(mapeo.itemId());
+                stock = item != null ? item.path("available_quantity").asInt(0) : -1;
+            } else {
+                stock = stockPorUserProduct.getOrDefault(mapeo.userProductId(), -1);
+            }
+            if (stock == -1 && IndiceSkuML.buscar(entry.getKey()) == null) {
+                invalidados.add(entry.getKey());
+            } else {
+                stockPorSku.put(entry.getKey(), stock);
+            }
+        }
+        // Mapeos que un 404 invalidó: se resuelven de nuevo por el camino individual
+        if (!invalidados.isEmpty()) {
+            stockPorSku.putAll(enParalelo(invalidados, sku -> stockPorSku(userId, sku)));
+        }
+        IndiceSkuML.guardar();
+
+        Map<String, Integer> stockMap = new LinkedHashMap<>();
         for (String sku : skus) {
-            CompletableFuture<Void> future = CompletableFuture.runAsync(() -> {
-                int stock = obtenerStockPorSku(userId, sku);
-                synchronized (stockMap) {
-                    stockMap.put(sku, stock);
+            stockMap.put(sku, stockPorSku.getOrDefault(sku, -1));
+        }
+        return stockMap;
+    }
+
+    /**
+     * Pide items con /items?ids= de a MAX_IDS_MULTIGET, solo con los atributos que usa el cálculo de stock.
+     *
+     * @return itemId → cuerpo del item (los que no se pudieron obtener no aparecen)
+     */
+    private static Map<String, JsonNode> obtenerItemsMultiget(Collection<String> itemIds) {
+        List<String> ids = new ArrayList<>(itemIds);
+        List<List<String>> lotes = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i += MAX_IDS_MULTIGET) {
+            lotes.add(ids.subList(i, Math.min(i + MAX_IDS_MULTIGET, ids.size())));
+        }
+
+        Map<String, JsonNode> items = new HashMap<>();
+        for (Map<String, JsonNode> lote : enParalelo(lotes, MercadoLibreAPI::obtenerLoteDeItems).values()) {
+            items.putAll(lote);
+        }
+        return items;
+    }
+
+    private static Map<String, JsonNode> obtenerLoteDeItems(List<String> ids) {
+        Map<String, JsonNode> items = new HashMap<>();
+        String url = "https://api.mercadolibre.com/items?ids=" + String.join(",", ids)
+                + "&attributes=id,user_product_id,available_quantity";
+        HttpResponse<String> response = retryHandler.sendWithRetry(() -> HttpRequest.newBuilder()
+                .uri(URI.create(url))
+                .header("Authorization", "Bearer " + tokens.get().accessToken)
+                .GET()
+                .build());
+
+        if (response == null || response.statusCode() != 200) {
+            AppLogger.warn("ML - Error al obtener items " + ids + ": " + (response != null ? response.body() : "sin respuesta"));
+            return items;
+        }
+        try {
+            // Cada elemento es {"code": 200, "body": {...}}; los que no existen vienen con otro code
+            // Vienen en el mismo orden que los ids pedidos
+            JsonNode resultados = mapper.readTree(response.body());
+            for (int i = 0; i < resultados.size(); i++) {
+                JsonNode resultado = resultados.get(i);
+                JsonNode body = resultado.path("body");
+                int code = resultado.path("code").asInt(0);
+                if (code == 200 && body.has("id")) {
+                    items.put(body.path("id").asString(), body);
+                } else if (code == 404 && i < ids.size()) {
+                    IndiceSkuML.invalidarItem(ids.get(i));
                 }
-            });
-            futures.add(future);
+            }
+        } catch (Exception e) {
+            AppLogger.warn("ML - Error al leer items " + ids + ": " + e.getMessage());
         }
+        return items;
+    }
 
-        // Esperar a que terminen todas las llamadas
+    /**
+     * Aplica una consulta bloqueante a cada clave en virtual threads, con a lo sumo
+     * MAX_CONSULTAS_EN_VUELO a la vez (el ritmo real lo marca el rate limiter).
+     * Una consulta que falla con una excepción se loguea y deja afuera solo a su clave.
+     *
+     * @return clave → resultado, sin las claves cuyo resultado fue null o que fallaron
+     */
+    private static <K, V> Map<K, V> enParalelo(Collection<K> claves, Function<K, V> consulta) {
+        Semaphore enVuelo = new Semaphore(MAX_CONSULTAS_EN_VUELO);
+        Map<K, V> resultados = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (K clave : claves) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                try {
+                    enVuelo.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                try {
+                    V valor = consulta.apply(clave);
+                    if (valor != null) resultados.put(clave, valor);
+                } finally {
+                    enVuelo.release();
+                }
+            }, HttpClientFactory.getExecutor()).exceptionally(e -> {
+                AppLogger.warn("ML - Error al consultar " + clave + ": "
+                        + (e.getCause() != null ? e.getCause() : e));
+                return null;
+            }));
+        }
         CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
-
-        return stockMap;
+        return resultados;
     }
 
     /**
@@ -482,7 +1074,7 @@ public class MercadoLibreAPI {
 
         Supplier<HttpRequest> requestBuilder = () -> HttpRequest.newBuilder()
                 .uri(URI.create(url))
-                .header("Authorization", "Bearer " + tokens.accessToken)
+                .header("Authorization", "Bearer " + tokens.get().accessToken)
                 .GET()
                 .build();
 
@@ -513,7 +1105,7 @@ public class MercadoLibreAPI {
 
         Supplier<HttpRequest> requestBuilder = () -> HttpRequest.newBuilder()
                 .uri(URI.create(url))
-                .header("Authorization", "Bearer " + tokens.accessToken)
+                .header("Authorization", "Bearer " + tokens.get().accessToken)
                 .GET()
                 .build();
 
@@ -544,7 +1136,7 @@ public class MercadoLibreAPI {
 
         Supplier<HttpRequest> requestBuilder = () -> HttpRequest.newBuilder()
                 .uri(URI.create(url))
-                .header("Authorization", "Bearer " + tokens.accessToken)
+                .header("Authorization", "Bearer " + tokens.get().accessToken)
                 .header("x-format-new", "true")
                 .GET()
                 .build();
@@ -585,18 +1177,26 @@ public class MercadoLibreAPI {
             // Query SIN tags.not
             Supplier<HttpRequest> reqSin = () -> HttpRequest.newBuilder()
                     .uri(URI.create(urlSin))
-                    .header("Authorization", "Bearer " + tokens.accessToken)
+                    .header("Authorization", "Bearer " + tokens.get().accessToken)
                     .GET().build();
             HttpResponse<String> respSin = retryHandler.sendWithRetry(reqSin);
+            if (respSin == null) {
+                System.err.println("ML TEST - Sin respuesta para la búsqueda sin tags.not");
+                return;
+            }
             JsonNode rootSin = mapper.readTree(respSin.body());
             int totalSin = rootSin.path("paging").path("total").asInt(0);
 
             // Query CON tags.not=delivered
             Supplier<HttpRequest> reqCon = () -> HttpRequest.newBuilder()
                     .uri(URI.create(urlCon))
-                    .header("Authorization", "Bearer " + tokens.accessToken)
+                    .header("Authorization", "Bearer " + tokens.get().accessToken)
                     .GET().build();
             HttpResponse<String> respCon = retryHandler.sendWithRetry(reqCon);
+            if (respCon == null) {
+                System.err.println("ML TEST - Sin respuesta para la búsqueda con tags.not=delivered");
+                return;
+            }
             JsonNode rootCon = mapper.readTree(respCon.body());
             int totalCon = rootCon.path("paging").path("total").asInt(0);
 
@@ -615,7 +1215,7 @@ public class MercadoLibreAPI {
                     String status = order.path("status").asString("");
                     JsonNode tags = order.path("tags");
                     boolean fulfilled = order.path("fulfilled").asBoolean(false);
-                    boolean tieneNotaEscrita = tieneNota(orderId);
+                    boolean tieneNotaEscrita = tieneNotaAsync(orderId).join();
                     System.out.println("Orden " + orderId + " | status: " + status + " | fulfilled: " + fulfilled + " | nota: " + tieneNotaEscrita + " | tags: " + tags);
                 }
             }
@@ -639,21 +1239,21 @@ public class MercadoLibreAPI {
     /**
      * Verifica si una orden tiene alguna nota escrita.
      */
-    private static boolean tieneNota(long orderId) {
+    private static CompletableFuture<Boolean> tieneNotaAsync(long orderId) {
         Supplier<HttpRequest> requestBuilder = () -> HttpRequest.newBuilder()
                 .uri(URI.create("https://api.mercadolibre.com/orders/" + orderId + "/notes"))
-                .header("Authorization", "Bearer " + tokens.accessToken)
+                .header("Authorization", "Bearer " + tokens.get().accessToken)
                 .GET()
                 .build();
 
-        HttpResponse<String> response = retryHandler.sendWithRetry(requestBuilder);
-
-        if (response == null || response.statusCode() != 200) {
-            return false;
-        }
+        return retryHandler.sendWithRetryAsync(requestBuilder)
+                .thenApply(response -> response != null && response.statusCode() == 200
+                        && leerTieneNota(orderId, response.body()));
+    }
 
+    private static boolean leerTieneNota(long orderId, String body) {
         try {
-            JsonNode root = mapper.readTree(response.body());
+            JsonNode root = mapper.readTree(body);
             if (!root.isArray() || root.isEmpty()) return false;
 
             JsonNode results = root.get(0).path("results");
@@ -672,6 +1272,112 @@ public class MercadoLibreAPI {
         return false;
     }
 
+    /**
+     * Escribe la nota "impreso" en las órdenes de acuerdo con el vendedor que entraron al pickit, para que
+     * las próximas corridas las excluyan. Las órdenes que ya se sabe que tienen nota no se tocan; las que
+     * quedaron en duda en una corrida anterior (ver {@link NotasPendientesML}) se consultan antes de escribir.
+     * Las notas se mandan en paralelo, con un tope en vuelo y al ritmo del rate limiter.
+     *
+     * @return cantidad de notas escritas
+     */
+    public static int marcarImpresas(List<OrdenML> ordenes) {
+        verificarTokens();
+
+        Set<Long> sinNota = new LinkedHashSet<>();
+        for (OrdenML orden : ordenes) {
+            if (!OrdenesConNota.contiene(orden.getOrderId())) sinNota.add(orden.getOrderId());
+        }
+        if (sinNota.isEmpty()) return 0;
+
+        // Órdenes en duda de una corrida anterior: solo se escriben si se confirma que no tienen nota
+        Set<Long> enDuda = NotasPendientesML.todas();
+        enDuda.retainAll(sinNota);
+        Map<Long, Boolean> verificadas = enParalelo(enDuda, MercadoLibreAPI::consultarTieneNota);
+        List<Long> aEscribir = new ArrayList<>();
+        for (long orderId : sinNota) {
+            if (!enDuda.contains(orderId)) {
+                aEscribir.add(orderId);
+                continue;
+            }
+            Boolean conNota = verificadas.get(orderId);
+            if (conNota == null) continue; // no se pudo consultar: sigue en duda hasta la próxima corrida
+            if (conNota) {
+                OrdenesConNota.agregar(orderId);
+                NotasPendientesML.quitar(orderId);
+            } else {
+                aEscribir.add(orderId);
+            }
+        }
+
+        // Se anotan antes de mandar: si la corrida se corta, la próxima sabe cuáles verificar
+        NotasPendientesML.agregar(aEscribir);
+        if (!NotasPendientesML.guardar()) {
+            AppLogger.warn("ML - No se escriben las notas \"" + NOTA_IMPRESO + "\": no se pudo registrar el diario.");
+            return 0;
+        }
+
+        Map<Long, ResultadoNota> resultados = enParalelo(aEscribir, MercadoLibreAPI::escribirNotaImpreso);
+        int escritas = 0;
+        int fallidas = 0;
+        for (long orderId : aEscribir) {
+            ResultadoNota resultado = resultados.getOrDefault(orderId, ResultadoNota.EN_DUDA);
+            switch (resultado) {
+                case ESCRITA -> {
+                    escritas++;
+                    OrdenesConNota.agregar(orderId);
+                    NotasPendientesML.quitar(orderId);
+                }
+                case RECHAZADA -> {
+                    fallidas++;
+                    NotasPendientesML.quitar(orderId);
+                }
+                case EN_DUDA -> fallidas++;
+            }
+        }
+        NotasPendientesML.guardar();
+        OrdenesConNota.guardar();
+
+        AppLogger.info("ML - Notas \"" + NOTA_IMPRESO + "\" escritas: " + escritas + "/" + sinNota.size()
+                + (fallidas > 0 ? " (" + fallidas + " con error, se reintentan en la próxima corrida)" : ""));
+        return escritas;
+    }
+
+    /**
+     * @return si la orden tiene alguna nota, o null si no se pudo consultar
+     */
+    private static Boolean consultarTieneNota(long orderId) {
+        HttpResponse<String> response = retryHandler.sendWithRetry(() -> HttpRequest.newBuilder()
+                .uri(URI.create("https://api.mercadolibre.com/orders/" + orderId + "/notes"))
+                .header("Authorization", "Bearer " + tokens.get().accessToken)
+                .GET()
+                .build());
+        if (response == null || response.statusCode() != 200) {
+            return null;
+        }
+        return leerTieneNota(orderId, response.body());
+    }
+
+    private static ResultadoNota escribirNotaImpreso(long orderId) {
+        String body = mapper.writeValueAsString(Map.of("note", NOTA_IMPRESO));
+        // Un POST de nota repetido duplica la nota: sin reintentos si pudo haberse procesado
+        HttpResponse<String> response = retryHandler.sendSinRepetir(() -> HttpRequest.newBuilder()
+                .uri(URI.create("https://api.mercadolibre.com/orders/" + orderId + "/notes"))
+                .header("Authorization", "Bearer " + tokens.get().accessToken)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build());
+        if (response == null) {
+            return ResultadoNota.EN_DUDA;
+        }
+        int status = response.statusCode();
+        if (status >= 200 && status < 300) {
+            return ResultadoNota.ESCRITA;
+        }
+        AppLogger.warn("ML - Error al escribir nota en orden " + orderId + ": " + response.body());
+        // Un 5xx pudo haberse procesado igual; un 4xx es un rechazo
+        return status >= 500 ? ResultadoNota.EN_DUDA : ResultadoNota.RECHAZADA;
+    }
+
     // TOKENS
     // -----------------------------------------------------------------------------------------------------------------------------------------------------------------------------
     public static boolean inicializar() {
@@ -681,57 +1387,128 @@ public class MercadoLibreAPI {
             return false;
         }
 
-        tokens = cargarTokens();
-        if (tokens == null) {
+        TokensML cargados = cargarTokens();
+        if (cargados == null) {
             // No hay tokens → pedir autorización
             AppLogger.info("ML - No hay tokens de ML, solicitando autorización...");
             final String code = pedirCodeManual();
-            tokens = obtenerAccessToken(code);
-            guardarTokens(tokens);
+            cargados = obtenerAccessToken(code);
+            guardarTokens(cargados);
         }
+        tokens.set(cargados);
+        programarRenovacion(cargados, cargados.vencimientoMs() - MARGEN_RENOVACION.toMillis() - System.currentTimeMillis());
 
+        iniciarNotificaciones();
         return true;
     }
 
+    /**
+     * Asegura que haya un access token usable. Normalmente no hace nada: la renovación programada
+     * cambia los tokens antes de que venzan. Si están por vencer dispara la renovación en segundo plano
+     * sin esperarla, y solo si ya vencieron espera a la renovación en curso.
+     */
     public static void verificarTokens() {
-        // Verificar que tokens no sea null
-        if (tokens == null) {
-            AppLogger.warn("ML - Tokens no inicializados. Intentando inicializar...");
-            if (!inicializar()) {
-                throw new IllegalStateException("ML - No se pudieron inicializar los tokens.");
+        TokensML actuales = tokens.get();
+        if (actuales == null) {
+            synchronized (TOKEN_LOCK) {
+                if (tokens.get() != null) return;
+                AppLogger.warn("ML - Tokens no inicializados. Intentando inicializar...");
+                if (!inicializar()) {
+                    throw new IllegalStateException("ML - No se pudieron inicializar los tokens.");
+                }
             }
             return;
         }
 
-        // Chequeo rápido SIN bloqueo
-        if (!tokens.isExpired()) {
+        long restanteMs = actuales.vencimientoMs() - System.currentTimeMillis();
+        if (restanteMs > MARGEN_RENOVACION.toMillis()) {
             return;
         }
+        CompletableFuture<TokensML> renovacion = renovarTokens(actuales);
+        if (restanteMs > 0) {
+            return; // todavía sirve; la renovación sigue en segundo plano
+        }
 
-        // Solo bloquear si realmente está vencido
-        synchronized (TOKEN_LOCK) {
-            // Chequeo nuevamente dentro del lock (doble chequeo)
-            if (tokens == null || !tokens.isExpired()) {
-                return; // otro thread ya lo renovó o tokens aún válidos
+        AppLogger.info("ML - Access token expirado, esperando la renovación...");
+        try {
+            renovacion.join();
+        } catch (CompletionException e) {
+            throw new RuntimeException("No se pudo renovar el token de ML", e.getCause());
+        }
+    }
+
+    /**
+     * onAuthError del retry handler: ante un 401 devuelve la renovación compartida, y el reintento sale cuando
+     * termina; salvo que los tokens se hayan renovado recién (el request fallido salió con los anteriores y el
+     * reintento ya usa los nuevos).
+     */
+    private static CompletableFuture<?> renovarTrasError401() {
+        TokensML actuales = tokens.get();
+        if (actuales == null || System.currentTimeMillis() - actuales.issuedAt < TOKENS_RECIENTES.toMillis()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        // Nunca falla: si no se pudo renovar, el reintento sale con los tokens que haya
+        return renovarTokens(actuales).handle((renovados, e) -> {
+            if (e != null) {
+                Throwable causa = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                AppLogger.warn("ML - Error al renovar token tras 401: " + causa.getMessage());
             }
+            return null;
+        });
+    }
+
+    /**
+     * Renueva los tokens una sola vez aunque la pidan varios threads a la vez: el primero lanza la renovación
+     * en segundo plano y el resto recibe el mismo future. Si los tokens ya no son {@code usados}, otro la
+     * hizo antes y se devuelven los vigentes.
+     */
+    private static CompletableFuture<TokensML> renovarTokens(TokensML usados) {
+        CompletableFuture<TokensML> nueva = new CompletableFuture<>();
+        CompletableFuture<TokensML> enCurso = renovacionEnCurso.compareAndExchange(null, nueva);
+        if (enCurso != null) {
+            return enCurso;
+        }
+        TokensML vigentes = tokens.get();
+        if (vigentes != usados) {
+            renovacionEnCurso.set(null);
+            nueva.complete(vigentes);
+            return nueva;
+        }
 
-            AppLogger.info("ML - Access token expirado, renovando...");
+        HttpClientFactory.getExecutor().execute(() -> {
             try {
-                tokens = refreshAccessToken(tokens.refreshToken);
-                tokens.issuedAt = System.currentTimeMillis();
-                guardarTokens(tokens);
+                AppLogger.info("ML - Renovando access token...");
+                TokensML renovados = refreshAccessToken(usados.refreshToken);
+                tokens.set(renovados);
+                renovacionEnCurso.set(null);
+                nueva.complete(renovados);
+                guardarTokens(renovados);
                 AppLogger.info("ML - Token renovado correctamente.");
+                programarRenovacion(renovados, renovados.vencimientoMs() - MARGEN_RENOVACION.toMillis() - System.currentTimeMillis());
             } catch (Exception e) {
                 AppLogger.warn("ML - Error al renovar token: " + e.getMessage());
-                throw new RuntimeException("No se pudo renovar el token de ML", e);
+                renovacionEnCurso.set(null);
+                nueva.completeExceptionally(e);
+                programarRenovacion(usados, REINTENTO_RENOVACION.toMillis());
             }
-        }
+        });
+        return nueva;
+    }
+
+    /**
+     * Programa la renovación de estos tokens. Si para entonces ya fueron reemplazados no hace nada,
+     * así que nunca queda más de una renovación programada vigente.
+     */
+    private static void programarRenovacion(TokensML programados, long demoraMs) {
+        CompletableFuture.delayedExecutor(Math.max(0, demoraMs), TimeUnit.MILLISECONDS, HttpClientFactory.getExecutor())
+                .execute(() -> {
+                    if (tokens.get() == programados) renovarTokens(programados);
+                });
     }
 
     private static MLCredentials cargarMLCredentials() {
         try {
-            File f = MERCADOLIBRE_FILE.toFile();
-            return f.exists() ? mapper.readValue(f, MLCredentials.class) : null;
+            return EstadoPersistente.leer(MERCADOLIBRE_FILE, MLCredentials.class);
         } catch (Exception e) {
             AppLogger.warn("Error cargando credenciales ML: " + e.getMessage());
             return null;
@@ -740,8 +1517,7 @@ public class MercadoLibreAPI {
 
     private static TokensML cargarTokens() {
         try {
-            File f = TOKEN_FILE.toFile();
-            return f.exists() ? mapper.readValue(f, TokensML.class) : null;
+            return EstadoPersistente.leer(TOKEN_FILE, TokensML.class);
         } catch (Exception e) {
             AppLogger.warn("Error cargando tokens ML: " + e.getMessage());
             return null;
@@ -750,7 +1526,7 @@ public class MercadoLibreAPI {
 
     private static void guardarTokens(TokensML tokens) {
         try {
-            mapper.writerWithDefaultPrettyPrinter().writeValue(TOKEN_FILE.toFile(), tokens);
+            EstadoPersistente.escribirAtomico(TOKEN_FILE, mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(tokens));
             AppLogger.info("ML - Tokens guardados en " + TOKEN_FILE);
         } catch (Exception e) {
             AppLogger.warn("Error guardando tokens ML: " + e.getMessage());
@@ -801,9 +1577,9 @@ public class MercadoLibreAPI {
                                 "&redirect_uri=" + mlCredentials.redirectUri))
                 .build();
 
-        HttpResponse<String> response = retryHandler.sendWithRetry(requestBuilder);
-        if (response.statusCode() != 200) {
-            throw new RuntimeException("Error al obtener access_token: " + response.body());
+        HttpResponse<String> response = authRetryHandler.sendWithRetry(requestBuilder);
+        if (response == null || response.statusCode() != 200) {
+            throw new RuntimeException("Error al obtener access_token: " + HttpRetryHandler.cuerpoComoTexto(response));
         }
 
         TokensML tokens = mapper.readValue(response.body(), TokensML.class);
@@ -822,9 +1598,9 @@ public class MercadoLibreAPI {
                                 "&refresh_token=" + refreshToken))
                 .build();
 
-        HttpResponse<String> response = retryHandler.sendWithRetry(requestBuilder);
-        if (response.statusCode() != 200) {
-            throw new RuntimeException("Error al refrescar access_token: " + response.body());
+        HttpResponse<String> response = authRetryHandler.sendWithRetry(requestBuilder);
+        if (response == null || response.statusCode() != 200) {
+            throw new RuntimeException("Error al refrescar access_token: " + HttpRetryHandler.cuerpoComoTexto(response));
         }
 
         TokensML tokens = mapper.readValue(response.body(), TokensML.class);
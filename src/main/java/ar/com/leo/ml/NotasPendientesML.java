@@ -0,0 +1,81 @@
+package ar.com.leo.ml;
+
+import ar.com.leo.AppLogger;
+import ar.com.leo.EstadoPersistente;
+import tools.jackson.core.type.TypeReference;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static ar.com.leo.HttpRetryHandler.BASE_ESTADO_DIR;
+
+/**
+ * Diario de las notas "impreso" que se mandaron a ML sin confirmación de resultado.
+ * Una orden se anota acá antes de mandar su nota y sale cuando ML confirma o rechaza el POST;
+ * si la corrida se corta o el POST queda en duda (timeout, 5xx), la orden sigue anotada y la próxima
+ * corrida consulta sus notas antes de volver a escribir, así nunca se escribe dos veces.
+ */
+public class NotasPendientesML {
+
+    private static final Path ARCHIVO = BASE_ESTADO_DIR.resolve("ml_notas_pendientes.json");
+    private static final Duration RETENCION = Duration.ofDays(30);
+
+    // orderId → epoch ms en que se mandó la nota
+    private static final ConcurrentHashMap<Long, Long> ordenes = new ConcurrentHashMap<>();
+    private static volatile boolean cargado;
+
+    public static Set<Long> todas() {
+        cargar();
+        return new TreeSet<>(ordenes.keySet());
+    }
+
+    public static void agregar(Collection<Long> orderIds) {
+        cargar();
+        long ahora = System.currentTimeMillis();
+        for (long orderId : orderIds) {
+            ordenes.put(orderId, ahora);
+        }
+    }
+
+    public static void quitar(long orderId) {
+        cargar();
+        ordenes.remove(orderId);
+    }
+
+    /**
+     * @return false si no se pudo guardar: en ese caso no hay que mandar notas, porque un corte no dejaría rastro
+     */
+    public static synchronized boolean guardar() {
+        if (!cargado) return true;
+        long limite = System.currentTimeMillis() - RETENCION.toMillis();
+        ordenes.values().removeIf(enviada -> enviada < limite);
+        try {
+            EstadoPersistente.guardarAtomico(ARCHIVO, new HashMap<>(ordenes));
+            return true;
+        } catch (Exception e) {
+            AppLogger.warn("ML - No se pudo guardar el diario de notas pendientes: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static void cargar() {
+        if (cargado) return;
+        synchronized (NotasPendientesML.class) {
+            if (cargado) return;
+            try {
+                Map<Long, Long> guardadas = EstadoPersistente.leer(ARCHIVO, new TypeReference<Map<Long, Long>>() {
+                });
+                if (guardadas != null) ordenes.putAll(guardadas);
+            } catch (Exception e) {
+                AppLogger.warn("ML - Error cargando el diario de notas pendientes: " + e.getMessage());
+            }
+            cargado = true;
+        }
+    }
+}
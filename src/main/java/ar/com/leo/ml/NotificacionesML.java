@@ -0,0 +1,164 @@
+package ar.com.leo.ml;
+
+import ar.com.leo.AppLogger;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import tools.jackson.databind.JsonNode;
+import tools.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Receptor HTTP embebido para las notificaciones de MercadoLibre (topics orders_v2 y shipments).
+ * ML exige un 200 rápido, así que la respuesta sale apenas se lee el payload y el procesamiento
+ * (refrescar las órdenes afectadas) se hace después, de a una notificación por vez.
+ * Por defecto escucha solo en loopback: para que ML llegue hasta acá hace falta un proxy o túnel que
+ * reenvíe la URL de callback de la aplicación, o elegir otra interfaz con el parámetro host.
+ * Se descartan los payloads de otro usuario o de otra aplicación, y si hay demasiadas notificaciones
+ * pendientes se responde 503 para que ML las reintente más tarde.
+ */
+public class NotificacionesML {
+
+    public static final String PATH = "/notificaciones";
+    static final int MAX_PENDIENTES = 256;
+
+    public record Notificacion(String topic, String resource, long userId, long applicationId, int attempts) {
+    }
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final HttpServer server;
+    private final ExecutorService procesamiento;
+    private final long userId;
+    private final long applicationId;
+    private final long activoDesde;
+
+    private NotificacionesML(HttpServer server, ExecutorService procesamiento, long userId, long applicationId) {
+        this.server = server;
+        this.procesamiento = procesamiento;
+        this.userId = userId;
+        this.applicationId = applicationId;
+        this.activoDesde = System.currentTimeMillis();
+    }
+
+    /**
+     * Levanta el receptor.
+     *
+     * @param host          interfaz donde escuchar (null = loopback)
+     * @param puerto        puerto (0 = puerto libre cualquiera)
+     * @param userId        id del vendedor: las notificaciones de otro user_id se rechazan
+     * @param applicationId id de la aplicación de ML (CLIENT_ID); 0 = no verificarlo
+     * @param procesador    recibe cada notificación válida, fuera del thread del servidor
+     */
+    public static NotificacionesML iniciar(String host, int puerto, long userId, long applicationId,
+                                           Consumer<Notificacion> procesador) throws IOException {
+        InetSocketAddress direccion = host == null || host.isBlank()
+                ? new InetSocketAddress(InetAddress.getLoopbackAddress(), puerto)
+                : new InetSocketAddress(host, puerto);
+        HttpServer server = HttpServer.create(direccion, 0);
+        // Un único thread: las notificaciones se procesan en orden y sin competir por el rate limiter
+        ExecutorService procesamiento = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_PENDIENTES), Thread.ofVirtual().name("notificaciones-ml").factory());
+        NotificacionesML receptor = new NotificacionesML(server, procesamiento, userId, applicationId);
+        server.createContext(PATH, exchange -> receptor.recibir(exchange, procesador));
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+        AppLogger.info("ML - Receptor de notificaciones escuchando en " + receptor.getDireccion() + PATH);
+        return receptor;
+    }
+
+    public void detener() {
+        server.stop(0);
+        procesamiento.shutdown();
+    }
+
+    public int getPuerto() {
+        return server.getAddress().getPort();
+    }
+
+    public InetSocketAddress getDireccion() {
+        return server.getAddress();
+    }
+
+    /**
+     * Momento desde el que se reciben notificaciones: cualquier cambio posterior llega por acá.
+     */
+    public long getActivoDesde() {
+        return activoDesde;
+    }
+
+    private void recibir(HttpExchange exchange, Consumer<Notificacion> procesador) throws IOException {
+        try (exchange) {
+            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            Notificacion notificacion;
+            try (InputStream body = exchange.getRequestBody()) {
+                notificacion = parsear(body);
+            } catch (Exception e) {
+                AppLogger.warn("ML - Notificación ilegible: " + e.getMessage());
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            if (notificacion.userId() != userId || (applicationId != 0 && notificacion.applicationId() != applicationId)) {
+                AppLogger.warn("ML - Notificación descartada, no es de esta cuenta (user_id " + notificacion.userId()
+                        + ", application_id " + notificacion.applicationId() + ") desde " + exchange.getRemoteAddress());
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+
+            try {
+                procesamiento.execute(() -> {
+                    try {
+                        procesador.accept(notificacion);
+                    } catch (Exception e) {
+                        AppLogger.warn("ML - Error procesando notificación " + notificacion.topic() + " "
+                                + notificacion.resource() + ": " + e.getMessage());
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Cola llena (o receptor detenido): ML reintenta las que no recibieron 200
+                AppLogger.warn("ML - Notificación rechazada, hay " + MAX_PENDIENTES + " pendientes: " + notificacion.resource());
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, -1);
+        }
+    }
+
+    private static Notificacion parsear(InputStream body) throws IOException {
+        JsonNode json = mapper.readTree(body);
+        String topic = json.path("topic").asString("");
+        String resource = json.path("resource").asString("");
+        if (topic.isBlank() || resource.isBlank()) {
+            throw new IOException("faltan topic o resource");
+        }
+        return new Notificacion(topic, resource, json.path("user_id").asLong(0), json.path("application_id").asLong(0),
+                json.path("attempts").asInt(1));
+    }
+
+    /**
+     * Id numérico al final del resource ("/orders/2000001234" → 2000001234), o -1 si no tiene.
+     */
+    public static long idDelRecurso(String resource) {
+        String ultimo = resource.substring(resource.lastIndexOf('/') + 1);
+        int fin = ultimo.indexOf('?');
+        if (fin >= 0) ultimo = ultimo.substring(0, fin);
+        try {
+            return Long.parseLong(ultimo);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package ar.com.leo.ml;
+
+import ar.com.leo.AppLogger;
+import ar.com.leo.EstadoPersistente;
+import tools.jackson.core.type.TypeReference;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static ar.com.leo.HttpRetryHandler.BASE_ESTADO_DIR;
+
+/**
+ * Órdenes de ML que ya tienen nota, persistidas entre corridas.
+ * En nuestro flujo una nota significa que la orden ya se imprimió y nunca vuelve atrás,
+ * así que una orden conocida no se vuelve a consultar en /orders/{id}/notes.
+ * Se guarda la fecha en que se vio la nota para descartar órdenes viejas, que ya quedan
+ * fuera de la ventana de 7 días de seller_agreement.
+ */
+public class OrdenesConNota {
+
+    private static final Path ARCHIVO = BASE_ESTADO_DIR.resolve("ml_ordenes_con_nota.json");
+    private static final Duration RETENCION = Duration.ofDays(30);
+
+    // orderId → epoch ms en que se registró la nota
+    private static final ConcurrentHashMap<Long, Long> ordenes = new ConcurrentHashMap<>();
+    private static volatile boolean cargado;
+
+    public static boolean contiene(long orderId) {
+        cargar();
+        return ordenes.containsKey(orderId);
+    }
+
+    public static void agregar(long orderId) {
+        cargar();
+        ordenes.putIfAbsent(orderId, System.currentTimeMillis());
+    }
+
+    public static synchronized void guardar() {
+        if (!cargado) return;
+        long limite = System.currentTimeMillis() - RETENCION.toMillis();
+        ordenes.values().removeIf(vista -> vista < limite);
+        try {
+            EstadoPersistente.guardarAtomico(ARCHIVO, new HashMap<>(ordenes));
+        } catch (Exception e) {
+            AppLogger.warn("ML - No se pudieron guardar las órdenes con nota: " + e.getMessage());
+        }
+    }
+
+    private static void cargar() {
+        if (cargado) return;
+        synchronized (OrdenesConNota.class) {
+            if (cargado) return;
+            try {
+                Map<Long, Long> guardadas = EstadoPersistente.leer(ARCHIVO, new TypeReference<Map<Long, Long>>() {
+                });
+                if (guardadas != null) ordenes.putAll(guardadas);
+            } catch (Exception e) {
+                AppLogger.warn("ML - Error cargando órdenes con nota, se reconsultan: " + e.getMessage());
+            }
+            cargado = true;
+        }
+    }
+}
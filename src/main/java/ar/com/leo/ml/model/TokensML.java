@@ -15,6 +15,9 @@ public class TokensML {
     @JsonProperty("expires_in")
     public long expiresIn; // en segundos
 
+    @JsonProperty("user_id")
+    public long userId;
+
     public long issuedAt;  // timestamp en milisegundos
 
     public boolean isExpired() {
@@ -23,4 +26,11 @@ public class TokensML {
         return elapsed >= expiresIn;
     }
 
+    /**
+     * Momento de vencimiento del access token, en epoch ms.
+     */
+    public long vencimientoMs() {
+        return issuedAt + expiresIn * 1000;
+    }
+
 }
@@ -0,0 +1,125 @@
+package ar.com.leo.nube;
+
+import ar.com.leo.AppLogger;
+import ar.com.leo.EstadoPersistente;
+import ar.com.leo.nube.NubeOrdersParser.OrdenNube;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static ar.com.leo.HttpRetryHandler.BASE_ESTADO_DIR;
+
+/**
+ * Copia local, por tienda, de las órdenes de Tienda Nube pendientes de armar (abiertas, pagas y sin empaquetar).
+ * Una sincronización completa trae todas las pendientes; las siguientes piden solo las órdenes modificadas
+ * desde la última sincronización (updated_at_min) y agregan, actualizan o sacan cada una según siga pendiente.
+ * Cada {@code SYNC_COMPLETA_CADA} se vuelve a hacer una completa para corregir cualquier desvío.
+ */
+public class CacheOrdenesNube {
+
+    private static final Duration SYNC_COMPLETA_CADA = Duration.ofHours(6);
+    // Margen por diferencias de reloj y órdenes que se actualizan mientras se pagina
+    private static final Duration MARGEN_DELTA = Duration.ofMinutes(5);
+
+    public record Estado(long ultimaSyncMs, long ultimaSyncCompletaMs, Map<Long, OrdenNube> ordenes) {
+    }
+
+    private static final ConcurrentHashMap<String, CacheOrdenesNube> porTienda = new ConcurrentHashMap<>();
+
+    private final Path archivo;
+    private long ultimaSyncMs;
+    private long ultimaSyncCompletaMs;
+    private final Map<Long, OrdenNube> ordenes = new HashMap<>();
+
+    private CacheOrdenesNube(Path archivo) {
+        this.archivo = archivo;
+    }
+
+    public static CacheOrdenesNube de(String storeId) {
+        return porTienda.computeIfAbsent(storeId, id -> cargar(BASE_ESTADO_DIR.resolve("nube_ordenes_" + id + ".json")));
+    }
+
+    private static CacheOrdenesNube cargar(Path archivo) {
+        CacheOrdenesNube cache = new CacheOrdenesNube(archivo);
+        try {
+            Estado estado = EstadoPersistente.leer(archivo, Estado.class);
+            if (estado != null) {
+                cache.ultimaSyncMs = estado.ultimaSyncMs();
+                cache.ultimaSyncCompletaMs = estado.ultimaSyncCompletaMs();
+                if (estado.ordenes() != null) cache.ordenes.putAll(estado.ordenes());
+            }
+        } catch (Exception e) {
+            AppLogger.warn("NUBE - Caché de órdenes ilegible, se hace una sincronización completa: " + e.getMessage());
+        }
+        return cache;
+    }
+
+    public synchronized boolean requiereSyncCompleta(long ahoraMs) {
+        return ultimaSyncMs == 0 || ahoraMs - ultimaSyncCompletaMs >= SYNC_COMPLETA_CADA.toMillis();
+    }
+
+    /**
+     * Valor de updated_at_min para la sincronización incremental.
+     */
+    public synchronized String desdeDelta() {
+        Instant desde = Instant.ofEpochMilli(ultimaSyncMs).minus(MARGEN_DELTA);
+        return desde.atZone(ZoneId.systemDefault()).format(DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+    }
+
+    /**
+     * Resultado de una sincronización completa. Si no se pudieron leer todas las páginas se mezcla
+     * lo obtenido sin dar la sincronización por hecha, para que la próxima corrida la repita.
+     */
+    public synchronized void reemplazar(List<OrdenNube> pendientes, long inicioSyncMs, boolean completa) {
+        if (completa) {
+            ordenes.clear();
+            ultimaSyncMs = inicioSyncMs;
+            ultimaSyncCompletaMs = inicioSyncMs;
+        }
+        for (OrdenNube orden : pendientes) {
+            ordenes.put(orden.id(), orden);
+        }
+    }
+
+    /**
+     * Aplica las órdenes modificadas: las que siguen pendientes se guardan y el resto sale de la caché.
+     */
+    public synchronized void aplicarDelta(List<OrdenNube> modificadas, long inicioSyncMs, boolean completa) {
+        for (OrdenNube orden : modificadas) {
+            if (orden.pendiente()) {
+                ordenes.put(orden.id(), orden);
+            } else {
+                ordenes.remove(orden.id());
+            }
+        }
+        if (completa) {
+            ultimaSyncMs = inicioSyncMs;
+        }
+    }
+
+    /**
+     * Órdenes pendientes, por id (orden de creación).
+     */
+    public synchronized List<OrdenNube> ordenes() {
+        List<OrdenNube> lista = new ArrayList<>(ordenes.values());
+        lista.sort(Comparator.comparingLong(OrdenNube::id));
+        return lista;
+    }
+
+    public synchronized void guardar() {
+        try {
+            EstadoPersistente.guardarAtomico(archivo, new Estado(ultimaSyncMs, ultimaSyncCompletaMs, ordenes));
+        } catch (Exception e) {
+            AppLogger.warn("NUBE - No se pudo guardar la caché de órdenes: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package ar.com.leo.nube;
+
+import tools.jackson.core.JsonParser;
+import tools.jackson.core.JsonToken;
+import tools.jackson.databind.ObjectMapper;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parser en streaming de las páginas de /orders de Tienda Nube.
+ * Lee el cuerpo directamente con un JsonParser y arma registros compactos con los pocos campos
+ * que usa el pickit, sin construir el String completo ni el árbol JsonNode.
+ */
+public class NubeOrdersParser {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * @param unpacked algún fulfillment order está en UNPACKED
+     * @param pickup   algún fulfillment order es de retiro en local
+     */
+    public record OrdenNube(long id, String status, String paymentStatus, String ownerNote, boolean unpacked,
+                            boolean pickup, List<LineaNube> lineas) {
+
+        /**
+         * Sigue pendiente de armar: abierta, paga y con algún fulfillment sin empaquetar
+         * (lo mismo que filtra el pedido completo de órdenes).
+         */
+        public boolean pendiente() {
+            return "open".equals(status) && "paid".equals(paymentStatus) && unpacked;
+        }
+    }
+
+    public record LineaNube(String sku, String name, double quantity) {
+    }
+
+    public static List<OrdenNube> parsearPagina(InputStream body) {
+        List<OrdenNube> ordenes = new ArrayList<>();
+        try (JsonParser p = mapper.createParser(body)) {
+            if (p.nextToken() != JsonToken.START_ARRAY) {
+                return ordenes;
+            }
+            while (p.nextToken() == JsonToken.START_OBJECT) {
+                ordenes.add(parsearOrden(p));
+            }
+        }
+        return ordenes;
+    }
+
+    private static OrdenNube parsearOrden(JsonParser p) {
+        long id = 0;
+        String status = "";
+        String paymentStatus = "";
+        String ownerNote = "";
+        boolean unpacked = false;
+        boolean pickup = false;
+        List<LineaNube> lineas = List.of();
+
+        String campo;
+        while ((campo = p.nextName()) != null) {
+            JsonToken token = p.nextToken();
+            switch (campo) {
+                case "id" -> id = p.getValueAsLong(0);
+                case "status" -> status = texto(p);
+                case "payment_status" -> paymentStatus = texto(p);
+                case "owner_note" -> ownerNote = texto(p);
+                case "fulfillments" -> {
+                    if (token == JsonToken.START_ARRAY) {
+                        while (p.nextToken() == JsonToken.START_OBJECT) {
+                            String campoFo;
+                            while ((campoFo = p.nextName()) != null) {
+                                JsonToken tokenFo = p.nextToken();
+                                if ("status".equals(campoFo)) {
+                                    unpacked |= "unpacked".equalsIgnoreCase(texto(p));
+                                } else if ("shipping".equals(campoFo) && tokenFo == JsonToken.START_OBJECT) {
+                                    String campoShipping;
+                                    while ((campoShipping = p.nextName()) != null) {
+                                        p.nextToken();
+                                        if ("type".equals(campoShipping)) {
+                                            pickup |= "pickup".equalsIgnoreCase(texto(p));
+                                        } else {
+                                            p.skipChildren();
+                                        }
+                                    }
+                                } else {
+                                    p.skipChildren();
+                                }
+                            }
+                        }
+                    } else {
+                        p.skipChildren();
+                    }
+                }
+                case "products" -> {
+                    if (token == JsonToken.START_ARRAY) {
+                        lineas = new ArrayList<>();
+                        while (p.nextToken() == JsonToken.START_OBJECT) {
+                            lineas.add(parsearLinea(p));
+                        }
+                    } else {
+                        p.skipChildren();
+                    }
+                }
+                default -> p.skipChildren();
+            }
+        }
+
+        return new OrdenNube(id, status, paymentStatus, ownerNote, unpacked, pickup, lineas);
+    }
+
+    private static LineaNube parsearLinea(JsonParser p) {
+        String sku = "";
+        String name = "";
+        double quantity = 0;
+
+        String campo;
+        while ((campo = p.nextName()) != null) {
+            p.nextToken();
+            switch (campo) {
+                case "sku" -> sku = texto(p);
+                case "name" -> name = texto(p);
+                case "quantity" -> quantity = p.getValueAsDouble(0);
+                default -> p.skipChildren();
+            }
+        }
+        return new LineaNube(sku, name, quantity);
+    }
+
+    private static String texto(JsonParser p) {
+        if (p.currentToken().isScalarValue()) {
+            return p.getValueAsString("");
+        }
+        p.skipChildren();
+        return "";
+    }
+}
@@ -1,7 +1,10 @@
 package ar.com.leo.nube;
 
 import ar.com.leo.AppLogger;
+import ar.com.leo.HttpClientFactory;
 import ar.com.leo.HttpRetryHandler;
+import ar.com.leo.nube.NubeOrdersParser.LineaNube;
+import ar.com.leo.nube.NubeOrdersParser.OrdenNube;
 import ar.com.leo.nube.model.NubeCredentials;
 import ar.com.leo.nube.model.NubeCredentials.StoreCredentials;
 import ar.com.leo.pickit.model.Venta;
@@ -9,13 +12,26 @@ import tools.jackson.databind.JsonNode;
 import tools.jackson.databind.ObjectMapper;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Supplier;
 
 import static ar.com.leo.HttpRetryHandler.BASE_SECRET_DIR;
@@ -23,12 +39,15 @@ import static ar.com.leo.HttpRetryHandler.BASE_SECRET_DIR;
 public class TiendaNubeApi {
 
     private static final ObjectMapper mapper = new ObjectMapper();
-    private static final HttpClient httpClient = HttpClient.newHttpClient();
-    private static final HttpRetryHandler retryHandler = new HttpRetryHandler(httpClient, 10000L, 2);
+    private static final HttpClient httpClient = HttpClientFactory.getSharedClient();
+    // Tienda Nube limita cada tienda por separado: un handler (rate limiter y circuit breaker) por tienda
+    private static final ConcurrentHashMap<String, HttpRetryHandler> retryHandlers = new ConcurrentHashMap<>();
     private static final Path NUBE_CREDENTIALS_FILE = BASE_SECRET_DIR.resolve("nube_tokens.json");
-
-    private static final String STORE_HOGAR = "KT HOGAR";
-    private static final String STORE_GASTRO = "KT GASTRO";
+    private static final String CAMPOS_ORDEN = "id,status,payment_status,owner_note,fulfillments,products";
+    // URL base de la API, configurable para probar contra un mock local
+    private static final String API_URL = System.getProperty("nube.api.url", "https://api.tiendanube.com/v1");
+    // Páginas de órdenes pedidas por adelantado, además de la que se está leyendo
+    private static final int PAGINAS_ADELANTADAS = 3;
 
     private static NubeCredentials credentials;
 
@@ -58,107 +77,238 @@ public class TiendaNubeApi {
         return true;
     }
 
-    public static List<Venta> obtenerVentasHogar() {
-        StoreCredentials store = getStore(STORE_HOGAR);
-        if (store == null) {
-            AppLogger.warn("NUBE - Credenciales de " + STORE_HOGAR + " no disponibles.");
-            return List.of();
+    /**
+     * Pide las ventas de todas las tiendas de nube_tokens.json a la vez, cada una con su propio rate limiter.
+     *
+     * @return nombre de la tienda → ventas de esa tienda (el nombre es también el origen de cada Venta)
+     */
+    public static Map<String, CompletableFuture<List<Venta>>> obtenerVentasPorTienda() {
+        Map<String, CompletableFuture<List<Venta>>> ventasPorTienda = new LinkedHashMap<>();
+        if (credentials == null || credentials.stores == null) return ventasPorTienda;
+        for (Map.Entry<String, StoreCredentials> tienda : credentials.stores.entrySet()) {
+            ventasPorTienda.put(tienda.getKey(), CompletableFuture.supplyAsync(
+                    () -> obtenerVentas(tienda.getValue(), tienda.getKey()), HttpClientFactory.getExecutor()));
         }
-        return obtenerVentas(store, STORE_HOGAR);
+        return ventasPorTienda;
     }
 
-    public static List<Venta> obtenerVentasGastro() {
-        StoreCredentials store = getStore(STORE_GASTRO);
-        if (store == null) {
-            AppLogger.warn("NUBE - Credenciales de " + STORE_GASTRO + " no disponibles.");
-            return List.of();
-        }
-        return obtenerVentas(store, STORE_GASTRO);
+    public static int cantidadTiendas() {
+        return credentials != null && credentials.stores != null ? credentials.stores.size() : 0;
+    }
+
+    private static HttpRetryHandler retryHandler(String tienda) {
+        return retryHandlers.computeIfAbsent(tienda,
+                t -> new HttpRetryHandler(httpClient, 10000L, 2).habilitarHedging().conCircuitoPropio(t));
     }
 
     /**
      * Obtiene todas las ventas pagadas, abiertas y sin empaquetar de una tienda Nube.
-     * GET /v1/{store_id}/orders?payment_status=paid&shipping_status=unpacked&status=open&aggregates=fulfillment_orders
+     * Las órdenes salen de {@link CacheOrdenesNube}: la primera vez (y cada tanto) se piden todas con
+     * GET /v1/{store_id}/orders?payment_status=paid&shipping_status=unpacked&status=open&aggregates=fulfillment_orders,
+     * y en el resto de las corridas solo las modificadas desde la última (updated_at_min), sin filtros,
+     * para enterarse también de las que dejaron de estar pendientes.
      * Filtra client-side por fulfillment_orders con status UNPACKED.
-     * Paginación usando el header Link como recomienda la documentación de Tiendanube.
      */
     private static List<Venta> obtenerVentas(StoreCredentials store, String label) {
+        CacheOrdenesNube cache = CacheOrdenesNube.de(store.storeId);
+        long inicio = System.currentTimeMillis();
+
+        if (cache.requiereSyncCompleta(inicio)) {
+            LecturaOrdenes lectura = leerOrdenes(store, label,
+                    "payment_status=paid&shipping_status=unpacked&status=open");
+            cache.reemplazar(lectura.ordenes(), inicio, lectura.completa());
+            AppLogger.info("NUBE (" + label + ") - Sincronización completa: " + lectura.ordenes().size() + " órdenes"
+                    + (lectura.completa() ? "" : " (incompleta, se repite en la próxima corrida)"));
+        } else {
+            String desde = cache.desdeDelta();
+            LecturaOrdenes lectura = leerOrdenes(store, label,
+                    "updated_at_min=" + URLEncoder.encode(desde, StandardCharsets.UTF_8));
+            cache.aplicarDelta(lectura.ordenes(), inicio, lectura.completa());
+            AppLogger.info("NUBE (" + label + ") - Órdenes modificadas desde " + desde + ": " + lectura.ordenes().size()
+                    + (lectura.completa() ? "" : " (incompleto, se repite en la próxima corrida)"));
+        }
+        cache.guardar();
+
         List<Venta> ventas = new ArrayList<>();
-        String nextUrl = String.format(
-                "https://api.tiendanube.com/v1/%s/orders?payment_status=paid&shipping_status=unpacked&status=open&aggregates=fulfillment_orders&per_page=200&page=1",
-                store.storeId);
-
-        while (nextUrl != null) {
-            final String currentUrl = nextUrl;
-            nextUrl = null;
-
-            Supplier<HttpRequest> requestBuilder = () -> HttpRequest.newBuilder()
-                    .uri(URI.create(currentUrl))
-                    .header("Authentication", "bearer " + store.accessToken)
-                    .header("User-Agent", "Pickit")
-                    .header("Content-Type", "application/json")
-                    .GET()
-                    .build();
-
-            HttpResponse<String> response = retryHandler.sendWithRetry(requestBuilder);
-
-            if (response == null || response.statusCode() != 200) {
-                // 404 con "Last page is 0" significa que no hay órdenes, no es un error
-                if (response != null && response.statusCode() == 404 && response.body().contains("Last page is 0")) {
-                    break;
+        for (OrdenNube order : cache.ordenes()) {
+            agregarVentas(order, label, ventas);
+        }
+
+        AppLogger.info("NUBE (" + label + ") - Ventas obtenidas: " + ventas.size());
+        return ventas;
+    }
+
+    /**
+     * @param completa se leyeron todas las páginas (false si alguna falló)
+     */
+    private record LecturaOrdenes(List<OrdenNube> ordenes, boolean completa) {
+    }
+
+    /**
+     * Lee todas las páginas de /orders con los filtros dados.
+     * Paginación usando el header Link como recomienda la documentación de Tiendanube. Con ofInputStream la
+     * respuesta (también la comprimida) llega apenas están los headers, así que la página siguiente se pide
+     * en ese momento, sin esperar a que se parsee el cuerpo de la actual; hasta {@code PAGINAS_ADELANTADAS}
+     * páginas pedidas y sin leer, todas por el rate limiter de la tienda.
+     */
+    private static LecturaOrdenes leerOrdenes(StoreCredentials store, String label, String filtros) {
+        List<OrdenNube> leidas = new ArrayList<>();
+        // fields: solo los campos que se leen (los productos vienen completos, fields no baja a sub-objetos)
+        String primera = String.format(
+                "%s/%s/orders?%s&aggregates=fulfillment_orders&fields=%s&per_page=200&page=1",
+                API_URL, store.storeId, filtros, CAMPOS_ORDEN);
+
+        PaginasAdelantadas paginas = new PaginasAdelantadas(store, label);
+        paginas.pedir(primera);
+        try {
+            CompletableFuture<HttpResponse<InputStream>> siguiente;
+            while ((siguiente = paginas.siguiente()) != null) {
+                HttpResponse<InputStream> response = esperarPagina(siguiente);
+
+                if (response == null || response.statusCode() != 200) {
+                    String body = HttpRetryHandler.cuerpoComoTexto(response);
+                    // 404 con "Last page is 0" significa que no hay órdenes, no es un error
+                    if (response != null && response.statusCode() == 404 && body.contains("Last page is 0")) {
+                        break;
+                    }
+                    AppLogger.warn("NUBE (" + label + ") - Error al obtener órdenes: " + body);
+                    return new LecturaOrdenes(leidas, false);
                 }
-                String body = response != null ? response.body() : "sin respuesta";
-                AppLogger.warn("NUBE (" + label + ") - Error al obtener órdenes: " + body);
-                break;
-            }
 
-            JsonNode ordersArray = mapper.readTree(response.body());
+                List<OrdenNube> ordenes;
+                try (InputStream body = response.body()) {
+                    ordenes = NubeOrdersParser.parsearPagina(body);
+                } catch (Exception e) {
+                    AppLogger.warn("NUBE (" + label + ") - Error al leer órdenes: " + e.getMessage());
+                    return new LecturaOrdenes(leidas, false);
+                }
 
-            if (!ordersArray.isArray() || ordersArray.isEmpty()) {
-                break;
+                if (ordenes.isEmpty()) {
+                    break;
+                }
+                leidas.addAll(ordenes);
             }
+        } finally {
+            paginas.cerrar();
+        }
+        return new LecturaOrdenes(leidas, true);
+    }
+
+    /**
+     * Páginas de /orders pedidas por adelantado. Cuando llegan los headers de la última página pedida
+     * (sin esperar su cuerpo) se pide la del header Link, mientras haya menos de {@code PAGINAS_ADELANTADAS}
+     * sin leer; al leer una se libera lugar y la cadena sigue.
+     */
+    private static final class PaginasAdelantadas {
 
-            for (JsonNode order : ordersArray) {
-                long orderId = order.path("id").asLong(0);
+        private final StoreCredentials store;
+        private final String label;
+        private final Deque<CompletableFuture<HttpResponse<InputStream>>> sinLeer = new ArrayDeque<>();
+        private CompletableFuture<HttpResponse<InputStream>> ultimaPedida;
+        private boolean cerrada;
 
-                // Filtrar por fulfillment_orders con status UNPACKED
-                if (!tieneFulfillmentUnpacked(order)) continue;
+        PaginasAdelantadas(StoreCredentials store, String label) {
+            this.store = store;
+            this.label = label;
+        }
 
-                // Omitir órdenes de retiro en local que tengan alguna nota
-                if (esPickup(order) && tieneNota(order)) {
-                    AppLogger.info("NUBE (" + label + ") - Omitida orden pickup con nota: " + orderId);
-                    continue;
-                }
+        synchronized void pedir(String url) {
+            if (cerrada) return;
+            CompletableFuture<HttpResponse<InputStream>> pagina = pedirPagina(store, label, url);
+            sinLeer.add(pagina);
+            ultimaPedida = pagina;
+            // Si ya llegó (o llega después) sigue la cadena desde el callback
+            pagina.thenRun(this::encadenar);
+        }
 
-                JsonNode products = order.path("products");
-                if (!products.isArray()) continue;
+        /**
+         * @return la próxima página en orden, o null si no hay más pedidas
+         */
+        synchronized CompletableFuture<HttpResponse<InputStream>> siguiente() {
+            CompletableFuture<HttpResponse<InputStream>> pagina = sinLeer.poll();
+            encadenar(); // se liberó un lugar
+            return pagina;
+        }
 
-                for (JsonNode product : products) {
-                    String sku = product.path("sku").asString("");
-                    double quantity = product.path("quantity").asDouble(0);
-                    String productName = product.path("name").asString("");
+        private synchronized void encadenar() {
+            if (cerrada || ultimaPedida == null || sinLeer.size() >= PAGINAS_ADELANTADAS) return;
+            CompletableFuture<HttpResponse<InputStream>> ultima = ultimaPedida;
+            if (!ultima.isDone() || ultima.isCompletedExceptionally()) return;
+            HttpResponse<InputStream> response = ultima.join();
+            if (response == null || response.statusCode() != 200) return;
+            String nextUrl = parseLinkNext(response);
+            ultimaPedida = null; // cada página encadena una sola vez
+            if (nextUrl != null) pedir(nextUrl);
+        }
 
-                    if (quantity <= 0) {
-                        AppLogger.warn("NUBE (" + label + ") - Producto con cantidad inválida en orden " + orderId + ": " + sku);
-                        String errorSku = sku.isBlank() ? productName : sku;
-                        ventas.add(new Venta("CANT INVALIDA: " + errorSku, quantity, label));
-                        continue;
-                    }
-                    if (sku.isBlank()) {
-                        AppLogger.warn("NUBE (" + label + ") - Producto sin SKU en orden " + orderId + ": " + productName);
-                        ventas.add(new Venta("SIN SKU: " + productName, quantity, label));
-                        continue;
-                    }
-                    ventas.add(new Venta(sku, quantity, label));
-                }
+        /**
+         * Las páginas pedidas que no se van a leer (error o página vacía) liberan su conexión.
+         */
+        synchronized void cerrar() {
+            cerrada = true;
+            for (CompletableFuture<HttpResponse<InputStream>> pendiente : sinLeer) {
+                pendiente.thenAccept(TiendaNubeApi::descartarPagina);
             }
+            sinLeer.clear();
+        }
+    }
+
+    private static CompletableFuture<HttpResponse<InputStream>> pedirPagina(StoreCredentials store, String label, String url) {
+        Supplier<HttpRequest> requestBuilder = () -> HttpRequest.newBuilder()
+                .uri(URI.create(url))
+                .header("Authentication", "bearer " + store.accessToken)
+                .header("User-Agent", "Pickit")
+                .header("Content-Type", "application/json")
+                .GET()
+                .build();
+        return retryHandler(label).sendWithRetryAsync(requestBuilder, HttpResponse.BodyHandlers.ofInputStream());
+    }
 
-            // Obtener la URL de la siguiente página del header Link
-            nextUrl = parseLinkNext(response);
+    private static HttpResponse<InputStream> esperarPagina(CompletableFuture<HttpResponse<InputStream>> pagina) {
+        try {
+            return pagina.join();
+        } catch (CompletionException | CancellationException e) {
+            AppLogger.warn("NUBE - Error al pedir página de órdenes: " + e.getMessage());
+            return null;
         }
+    }
 
-        AppLogger.info("NUBE (" + label + ") - Ventas obtenidas: " + ventas.size());
-        return ventas;
+    private static void descartarPagina(HttpResponse<InputStream> response) {
+        if (response == null) return;
+        try {
+            response.body().close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void agregarVentas(OrdenNube order, String label, List<Venta> ventas) {
+        // Filtrar por fulfillment_orders con status UNPACKED
+        if (!order.unpacked()) return;
+
+        // Omitir órdenes de retiro en local que tengan alguna nota
+        if (order.pickup() && !order.ownerNote().isBlank()) {
+            AppLogger.info("NUBE (" + label + ") - Omitida orden pickup con nota: " + order.id());
+            return;
+        }
+
+        for (LineaNube product : order.lineas()) {
+            String sku = product.sku();
+            double quantity = product.quantity();
+            String productName = product.name();
+
+            if (quantity <= 0) {
+                AppLogger.warn("NUBE (" + label + ") - Producto con cantidad inválida en orden " + order.id() + ": " + sku);
+                String errorSku = sku.isBlank() ? productName : sku;
+                ventas.add(new Venta("CANT INVALIDA: " + errorSku, quantity, label));
+                continue;
+            }
+            if (sku.isBlank()) {
+                AppLogger.warn("NUBE (" + label + ") - Producto sin SKU en orden " + order.id() + ": " + productName);
+                ventas.add(new Venta("SIN SKU: " + productName, quantity, label));
+                continue;
+            }
+            ventas.add(new Venta(sku, quantity, label));
+        }
     }
 
     /**
@@ -166,7 +316,7 @@ public class TiendaNubeApi {
      * Formato esperado: <URL>; rel="next", <URL>; rel="last"
      * Retorna null si no hay página siguiente.
      */
-    private static String parseLinkNext(HttpResponse<String> response) {
+    private static String parseLinkNext(HttpResponse<?> response) {
         var linkHeader = response.headers().firstValue("Link").orElse(null);
         if (linkHeader == null) return null;
 
@@ -195,8 +345,8 @@ public class TiendaNubeApi {
         }
 
         // Buscar en todas las tiendas
-        for (StoreCredentials store : credentials.stores.values()) {
-            int stock = obtenerStockEnTienda(store, sku);
+        for (Map.Entry<String, StoreCredentials> tienda : credentials.stores.entrySet()) {
+            int stock = obtenerStockEnTienda(tienda.getKey(), tienda.getValue(), sku);
             if (stock >= 0) {
                 return stock;
             }
@@ -209,10 +359,10 @@ public class TiendaNubeApi {
      * Usa el endpoint /products/sku/{sku} que devuelve el primer producto
      * donde una de sus variantes tiene el SKU dado.
      */
-    private static int obtenerStockEnTienda(StoreCredentials store, String sku) {
+    private static int obtenerStockEnTienda(String tienda, StoreCredentials store, String sku) {
         String url = String.format(
-                "https://api.tiendanube.com/v1/%s/products/sku/%s",
-                store.storeId, java.net.URLEncoder.encode(sku, java.nio.charset.StandardCharsets.UTF_8));
+                "%s/%s/products/sku/%s",
+                API_URL, store.storeId, URLEncoder.encode(sku, StandardCharsets.UTF_8));
 
         Supplier<HttpRequest> requestBuilder = () -> HttpRequest.newBuilder()
                 .uri(URI.create(url))
@@ -222,7 +372,8 @@ public class TiendaNubeApi {
                 .GET()
                 .build();
 
-        HttpResponse<String> response = retryHandler.sendWithRetry(requestBuilder);
+        // El producto trae el stock: siempre revalidar (ttl cero), un 304 ahorra bajar y parsear el cuerpo
+        HttpResponse<String> response = retryHandler(tienda).sendWithCache(requestBuilder, Duration.ZERO);
 
         if (response == null || response.statusCode() != 200) {
             return -1;
@@ -248,36 +399,6 @@ public class TiendaNubeApi {
         }
     }
 
-    private static boolean esPickup(JsonNode order) {
-        JsonNode fulfillments = order.path("fulfillments");
-        if (!fulfillments.isArray()) return false;
-        for (JsonNode fo : fulfillments) {
-            if ("pickup".equalsIgnoreCase(fo.path("shipping").path("type").asString(""))) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private static boolean tieneNota(JsonNode order) {
-        String nota = order.path("owner_note").asString("").trim();
-        return !nota.isEmpty();
-    }
-
-    /**
-     * Verifica si una orden tiene al menos un fulfillment order con status UNPACKED.
-     */
-    private static boolean tieneFulfillmentUnpacked(JsonNode order) {
-        JsonNode fulfillments = order.path("fulfillments");
-        if (!fulfillments.isArray() || fulfillments.isEmpty()) return false;
-        for (JsonNode fo : fulfillments) {
-            if ("unpacked".equalsIgnoreCase(fo.path("status").asString(""))) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     private static StoreCredentials getStore(String storeName) {
         if (credentials == null || credentials.stores == null) return null;
         return credentials.stores.get(storeName);
@@ -298,8 +419,8 @@ public class TiendaNubeApi {
      * Obtiene una orden específica por número de venta y muestra su JSON completo.
      */
     private static void testObtenerOrdenPorNumero(String numeroOrden) {
-        // Intentar en ambas tiendas
-        for (String storeName : List.of("KT HOGAR", "KT GASTRO")) {
+        // Intentar en todas las tiendas
+        for (String storeName : credentials.stores.keySet()) {
             StoreCredentials store = getStore(storeName);
             if (store == null) continue;
 
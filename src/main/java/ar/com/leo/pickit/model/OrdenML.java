@@ -9,12 +9,18 @@ public class OrdenML {
     private final long orderId;
     private final Long packId;
     private final OffsetDateTime fechaCreacion;
+    private final Long shipmentId;
     private final List<Venta> items;
 
     public OrdenML(long orderId, Long packId, OffsetDateTime fechaCreacion) {
+        this(orderId, packId, fechaCreacion, null);
+    }
+
+    public OrdenML(long orderId, Long packId, OffsetDateTime fechaCreacion, Long shipmentId) {
         this.orderId = orderId;
         this.packId = packId;
         this.fechaCreacion = fechaCreacion;
+        this.shipmentId = shipmentId;
         this.items = new ArrayList<>();
     }
 
@@ -30,6 +36,13 @@ public class OrdenML {
         return fechaCreacion;
     }
 
+    /**
+     * ID del envío, o null si la orden no tiene envío (acuerdo con el vendedor).
+     */
+    public Long getShipmentId() {
+        return shipmentId;
+    }
+
     public List<Venta> getItems() {
         return items;
     }
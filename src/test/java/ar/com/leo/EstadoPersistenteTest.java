@@ -0,0 +1,53 @@
+package ar.com.leo;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import tools.jackson.core.type.TypeReference;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class EstadoPersistenteTest {
+
+    record Estado(long ultimaSyncMs, Map<Long, Long> ordenes) {
+    }
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void guardaYLeeElMismoValor() throws IOException {
+        Path archivo = dir.resolve("estado").resolve("ml_prueba.json");
+        Estado estado = new Estado(1760700000000L, Map.of(2000001234L, 1760600000000L));
+
+        EstadoPersistente.guardarAtomico(archivo, estado);
+
+        assertEquals(estado, EstadoPersistente.leer(archivo, Estado.class));
+        assertEquals(Map.of(2000001234L, 1760600000000L),
+                EstadoPersistente.leer(archivo, new TypeReference<Estado>() {
+                }).ordenes());
+    }
+
+    @Test
+    void reemplazaSinDejarTemporales() throws IOException {
+        Path archivo = dir.resolve("ml_prueba.json");
+        EstadoPersistente.guardarAtomico(archivo, new Estado(1, Map.of()));
+        EstadoPersistente.guardarAtomico(archivo, new Estado(2, Map.of()));
+
+        assertEquals(2, EstadoPersistente.leer(archivo, Estado.class).ultimaSyncMs());
+        try (var archivos = Files.list(dir)) {
+            assertEquals(List.of(archivo), archivos.toList());
+        }
+    }
+
+    @Test
+    void sinArchivoDevuelveNull() {
+        assertNull(EstadoPersistente.leer(dir.resolve("no_existe.json"), Estado.class));
+    }
+}
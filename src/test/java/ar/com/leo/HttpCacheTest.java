@@ -0,0 +1,56 @@
+package ar.com.leo;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpCacheTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void podarBorraLasEntradasViejas() throws IOException {
+        Path reciente = entrada("reciente.json", 100, Duration.ofDays(1));
+        Path vieja = entrada("vieja.json", 100, Duration.ofDays(40));
+        Path temporalViejo = entrada("entrada123.tmp", 100, Duration.ofDays(40));
+
+        HttpCache.podar(dir, Duration.ofDays(30), Long.MAX_VALUE);
+
+        assertTrue(Files.exists(reciente));
+        assertFalse(Files.exists(vieja));
+        assertFalse(Files.exists(temporalViejo));
+    }
+
+    @Test
+    void podarDejaLasMasRecientesQueEntranEnElTamano() throws IOException {
+        Path hoy = entrada("hoy.json", 400, Duration.ofHours(1));
+        Path ayer = entrada("ayer.json", 400, Duration.ofDays(1));
+        Path anteayer = entrada("anteayer.json", 400, Duration.ofDays(2));
+        Path otro = entrada("notas.txt", 5000, Duration.ofDays(90));
+
+        HttpCache.podar(dir, Duration.ofDays(30), 1000);
+
+        assertTrue(Files.exists(hoy));
+        assertTrue(Files.exists(ayer));
+        assertFalse(Files.exists(anteayer));
+        assertTrue(Files.exists(otro), "solo se borran entradas de la caché");
+        assertEquals(3, Files.list(dir).count());
+    }
+
+    private Path entrada(String nombre, int tamano, Duration antiguedad) throws IOException {
+        Path archivo = Files.write(dir.resolve(nombre), new byte[tamano]);
+        Files.setLastModifiedTime(archivo, FileTime.from(Instant.now().minus(antiguedad)));
+        return archivo;
+    }
+}
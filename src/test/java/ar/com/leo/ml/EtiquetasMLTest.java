@@ -0,0 +1,123 @@
+package ar.com.leo.ml;
+
+import ar.com.leo.HttpClientFactory;
+import ar.com.leo.HttpRetryHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * {@link EtiquetasML} contra un mock local de /shipment_labels que devuelve un zip con una etiqueta ZPL
+ * por envío (y 404 para los lotes con un envío terminado en 999).
+ */
+class EtiquetasMLTest {
+
+    private static HttpServer mock;
+    private static String apiBase;
+    private static HttpRetryHandler handler;
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void levantarMock() throws IOException {
+        mock = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mock.createContext("/shipment_labels", exchange -> {
+            try (exchange) {
+                String query = exchange.getRequestURI().getQuery();
+                String ids = query.replaceAll(".*shipment_ids=([^&]*).*", "$1");
+                if (ids.matches("(.*,)?\\d*999(,.*)?")) {
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+                }
+                StringBuilder zpl = new StringBuilder();
+                for (String id : ids.split(",")) {
+                    zpl.append(etiqueta(Long.parseLong(id))).append('\n');
+                }
+                ByteArrayOutputStream zip = new ByteArrayOutputStream();
+                try (ZipOutputStream out = new ZipOutputStream(zip)) {
+                    out.putNextEntry(new ZipEntry("Etiqueta de envio.txt"));
+                    out.write(zpl.toString().getBytes(StandardCharsets.UTF_8));
+                    out.closeEntry();
+                }
+                exchange.getResponseHeaders().add("Content-Type", "application/zip");
+                exchange.sendResponseHeaders(200, zip.size());
+                exchange.getResponseBody().write(zip.toByteArray());
+            }
+        });
+        mock.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        mock.start();
+        apiBase = "http://127.0.0.1:" + mock.getAddress().getPort();
+        handler = new HttpRetryHandler(HttpClientFactory.getSharedClient(), 10L, 50);
+    }
+
+    @AfterAll
+    static void detenerMock() {
+        mock.stop(0);
+    }
+
+    @Test
+    void todosLosLotesBienDejanUnaEtiquetaPorEnvioEnOrden() throws IOException {
+        List<Long> envios = new ArrayList<>();
+        for (long i = 0; i < 120; i++) envios.add(44000000000L + (i * 37) % 120);
+        envios.add(envios.getFirst()); // repetido, como dos órdenes del mismo pack
+        File destino = dir.resolve("ETIQUETAS.zpl").toFile();
+
+        int descargados = EtiquetasML.descargar(handler, apiBase, () -> "TOKEN", envios, destino);
+
+        assertEquals(120, descargados);
+        List<String> esperadas = envios.stream().distinct().map(EtiquetasMLTest::etiqueta).toList();
+        assertEquals(esperadas, Files.readAllLines(destino.toPath()));
+    }
+
+    @Test
+    void unLoteFallidoDejaElArchivoMarcadoComoIncompleto() throws IOException {
+        List<Long> envios = new ArrayList<>();
+        for (long i = 0; i < 100; i++) envios.add(44000000000L + i);
+        envios.set(60, 44000000999L);
+        File destino = dir.resolve("PARCIAL.zpl").toFile();
+
+        int descargados = EtiquetasML.descargar(handler, apiBase, () -> "TOKEN", envios, destino);
+
+        Path incompleto = dir.resolve("PARCIAL_INCOMPLETO.zpl");
+        assertEquals(50, descargados);
+        assertFalse(destino.exists(), "el archivo completo no debería existir");
+        assertEquals(envios.subList(0, 50).stream().map(EtiquetasMLTest::etiqueta).toList(), Files.readAllLines(incompleto));
+    }
+
+    @Test
+    void sinNingunLoteFallaYNoEscribeArchivo() {
+        File destino = dir.resolve("NADA.zpl").toFile();
+
+        assertThrows(IOException.class,
+                () -> EtiquetasML.descargar(handler, apiBase, () -> "TOKEN", List.of(44000000999L), destino));
+
+        assertFalse(destino.exists());
+        assertFalse(Files.exists(dir.resolve("NADA_INCOMPLETO.zpl")));
+    }
+
+    private static String etiqueta(long envio) {
+        return "^XA^FO50,50^FDENVIO " + envio + "^FS^XZ";
+    }
+}
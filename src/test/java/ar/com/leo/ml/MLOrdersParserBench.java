@@ -0,0 +1,113 @@
+package ar.com.leo.ml;
+
+import ar.com.leo.ml.MLOrdersParser.OrdenResumen;
+import ar.com.leo.pickit.model.OrdenML;
+import ar.com.leo.pickit.model.Venta;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import tools.jackson.databind.JsonNode;
+import tools.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark JMH (sin red) de la decodificación de una página de orders/search con 50 órdenes: el cuerpo
+ * como String + árbol JsonNode (como antes) vs. {@link MLOrdersParser} en streaming + aOrdenML.
+ * Con {@code -prof gc} JMH informa además los bytes asignados por operación (gc.alloc.rate.norm).
+ * <p>
+ * mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test
+ * "-Dexec.args=-cp %classpath org.openjdk.jmh.Main MLOrdersParserBench -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MLOrdersParserBench {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private byte[] pagina;
+
+    @Setup
+    public void armarPagina() {
+        pagina = paginaDePrueba(50).getBytes(StandardCharsets.UTF_8);
+        if (arbol() != streaming()) {
+            throw new IllegalStateException("Los dos caminos no arman las mismas ventas");
+        }
+    }
+
+    /**
+     * Camino anterior: el cuerpo llegaba con BodyHandlers.ofString() y se armaba el árbol completo.
+     */
+    @Benchmark
+    public int arbol() {
+        int ventas = 0;
+        String cuerpo = new String(pagina, StandardCharsets.UTF_8);
+        for (JsonNode order : mapper.readTree(cuerpo).path("results")) {
+            boolean entregada = false;
+            for (JsonNode tag : order.path("tags")) {
+                if ("delivered".equals(tag.asString())) entregada = true;
+            }
+            if (entregada) continue;
+            JsonNode packNode = order.path("pack_id");
+            Long packId = packNode.isNull() || packNode.isMissingNode() ? null : packNode.asLong();
+            OrdenML ordenML = new OrdenML(order.path("id").asLong(), packId,
+                    OffsetDateTime.parse(order.path("date_created").asString()));
+            for (JsonNode orderItem : order.path("order_items")) {
+                JsonNode item = orderItem.path("item");
+                String sku = item.path("seller_sku").asString("");
+                if (sku.isBlank()) sku = item.path("seller_custom_field").asString("");
+                ordenML.getItems().add(new Venta(sku, orderItem.path("quantity").asDouble(0), "ML"));
+            }
+            ventas += ordenML.getItems().size();
+        }
+        return ventas;
+    }
+
+    @Benchmark
+    public int streaming() {
+        int ventas = 0;
+        for (OrdenResumen orden : MLOrdersParser.parsearPagina(new ByteArrayInputStream(pagina)).ordenes()) {
+            if (!orden.entregada()) ventas += MLOrdersParser.aOrdenML(orden, "ML").getItems().size();
+        }
+        return ventas;
+    }
+
+    private static String paginaDePrueba(int ordenes) {
+        StringBuilder sb = new StringBuilder("{\"query\":null,\"results\":[");
+        for (int i = 0; i < ordenes; i++) {
+            if (i > 0) sb.append(',');
+            sb.append("{\"id\":").append(2000010000000L + i)
+                    .append(",\"pack_id\":").append(i % 3 == 0 ? "2000005000000" + i : "null")
+                    .append(",\"status\":\"paid\",\"date_created\":\"2026-10-1").append(i % 10)
+                    .append("T10:15:30.000-03:00\",\"date_last_updated\":\"2026-10-17T08:00:00.000-03:00\"")
+                    .append(",\"fulfilled\":null,\"tags\":[\"order_has_discount\",\"paid\"")
+                    .append(i % 7 == 0 ? ",\"delivered\"" : "").append("]")
+                    .append(",\"shipping\":{\"id\":").append(44000000000L + i).append("}")
+                    .append(",\"buyer\":{\"id\":123,\"nickname\":\"COMPRADOR\"},\"payments\":[{\"id\":1,\"total_paid_amount\":1500.5}]")
+                    .append(",\"order_items\":[");
+            for (int j = 0; j <= i % 3; j++) {
+                if (j > 0) sb.append(',');
+                sb.append("{\"item\":{\"id\":\"MLA").append(100000 + j).append("\",\"title\":\"Producto de prueba ").append(j)
+                        .append("\",\"seller_sku\":\"SKU-").append(i).append('-').append(j)
+                        .append("\",\"seller_custom_field\":null,\"variation_attributes\":[]},\"quantity\":").append(j + 1)
+                        .append(",\"unit_price\":1500.5,\"currency_id\":\"ARS\"}");
+            }
+            sb.append("]}");
+        }
+        return sb.append("],\"paging\":{\"total\":").append(ordenes).append(",\"offset\":0,\"limit\":50}}").toString();
+    }
+}
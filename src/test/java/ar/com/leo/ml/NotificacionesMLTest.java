@@ -0,0 +1,125 @@
+package ar.com.leo.ml;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * {@link NotificacionesML} con un cliente local que hace POST de notificaciones de ejemplo como las de ML.
+ */
+class NotificacionesMLTest {
+
+    private static final long USER_ID = 123456789L;
+    private static final long APPLICATION_ID = 5503910054141466L;
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private final BlockingQueue<NotificacionesML.Notificacion> recibidas = new LinkedBlockingQueue<>();
+    private NotificacionesML receptor;
+
+    @BeforeEach
+    void iniciar() throws IOException {
+        receptor = NotificacionesML.iniciar(null, 0, USER_ID, APPLICATION_ID, recibidas::add);
+    }
+
+    @AfterEach
+    void detener() {
+        receptor.detener();
+    }
+
+    @Test
+    void escuchaSoloEnLoopbackPorDefecto() {
+        assertTrue(receptor.getDireccion().getAddress().isLoopbackAddress(), "escucha en " + receptor.getDireccion());
+    }
+
+    @Test
+    void procesaLasNotificacionesDeLaCuenta() throws Exception {
+        assertEquals(200, post(payload("orders_v2", "/orders/2000001234", USER_ID, APPLICATION_ID)));
+        assertEquals(200, post(payload("shipments", "/shipments/44000000001", USER_ID, APPLICATION_ID)));
+
+        NotificacionesML.Notificacion orden = recibidas.poll(5, TimeUnit.SECONDS);
+        NotificacionesML.Notificacion envio = recibidas.poll(5, TimeUnit.SECONDS);
+        assertEquals(new NotificacionesML.Notificacion("orders_v2", "/orders/2000001234", USER_ID, APPLICATION_ID, 1), orden);
+        assertEquals("shipments", envio.topic());
+        assertEquals(44000000001L, NotificacionesML.idDelRecurso(envio.resource()));
+    }
+
+    @Test
+    void descartaLasDeOtraCuentaOAplicacion() throws Exception {
+        assertEquals(403, post(payload("orders_v2", "/orders/2000001234", 987654321L, APPLICATION_ID)));
+        assertEquals(403, post(payload("orders_v2", "/orders/2000001234", USER_ID, 1L)));
+        assertEquals(403, post("{\"topic\":\"orders_v2\",\"resource\":\"/orders/2000001234\"}"));
+
+        assertNull(recibidas.poll(300, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void rechazaPayloadsInvalidosYOtrosMetodos() throws Exception {
+        assertEquals(400, post("no es json"));
+        assertEquals(400, post("{\"topic\":\"orders_v2\",\"user_id\":" + USER_ID + "}"));
+        HttpResponse<Void> get = client.send(HttpRequest.newBuilder(uri()).GET().build(), HttpResponse.BodyHandlers.discarding());
+        assertEquals(405, get.statusCode());
+
+        assertNull(recibidas.poll(300, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void conLaColaLlenaRespondeServiceUnavailable() throws Exception {
+        receptor.detener();
+        CountDownLatch liberar = new CountDownLatch(1);
+        CountDownLatch procesando = new CountDownLatch(1);
+        receptor = NotificacionesML.iniciar(null, 0, USER_ID, APPLICATION_ID, notificacion -> {
+            procesando.countDown();
+            try {
+                liberar.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        // La primera ocupa el thread de procesamiento y las siguientes llenan la cola
+        assertEquals(200, post(payload("orders_v2", "/orders/1", USER_ID, APPLICATION_ID)));
+        assertTrue(procesando.await(5, TimeUnit.SECONDS));
+        List<Integer> status = new ArrayList<>();
+        for (int i = 0; i < NotificacionesML.MAX_PENDIENTES + 1; i++) {
+            status.add(post(payload("orders_v2", "/orders/" + (i + 2), USER_ID, APPLICATION_ID)));
+        }
+        liberar.countDown();
+
+        assertEquals(NotificacionesML.MAX_PENDIENTES, status.stream().filter(s -> s == 200).count());
+        assertEquals(503, (int) status.getLast());
+    }
+
+    private int post(String cuerpo) throws IOException, InterruptedException {
+        return client.send(HttpRequest.newBuilder(uri())
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString(cuerpo))
+                        .build(), HttpResponse.BodyHandlers.discarding())
+                .statusCode();
+    }
+
+    private URI uri() {
+        return URI.create("http://127.0.0.1:" + receptor.getPuerto() + NotificacionesML.PATH);
+    }
+
+    private static String payload(String topic, String resource, long userId, long applicationId) {
+        return "{\"_id\":\"d7f6b0c5-0b1e-4c8e-9f3a-4e1d2c3b4a59\",\"resource\":\"" + resource + "\",\"user_id\":" + userId
+                + ",\"topic\":\"" + topic + "\",\"application_id\":" + applicationId
+                + ",\"attempts\":1,\"sent\":\"2026-10-17T12:00:00.000Z\",\"received\":\"2026-10-17T12:00:00.000Z\"}";
+    }
+}